@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright (C) 2003-2012 Bob Foster. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *    Bob Foster, initial API and implementation.
+ *******************************************************************************/
+
+package org.genantics.peggen;
+
+/**
+ * Immutable set of chars, kept as sorted, disjoint, non-adjacent
+ * inclusive ranges.
+ *
+ * @author Bob Foster
+ */
+public final class CharSet {
+
+	public static final CharSet EMPTY = new CharSet(new int[0]);
+	public static final CharSet ALL = new CharSet(new int[] {0, Character.MAX_VALUE});
+
+	// lo0, hi0, lo1, hi1, ...
+	private final int[] ranges;
+
+	private CharSet(int[] ranges) {
+		this.ranges = ranges;
+	}
+
+	public static CharSet of(char c) {
+		return new CharSet(new int[] {c, c});
+	}
+
+	public static CharSet range(char lo, char hi) {
+		if (lo > hi) return EMPTY;
+		return new CharSet(new int[] {lo, hi});
+	}
+
+	private static String[] caseVariants;
+
+	/**
+	 * Set of the chars that are the same as c ignoring case, those
+	 * that fold to the same char.
+	 */
+	public static CharSet ofIgnoreCase(char c) {
+		if (caseVariants == null) {
+			StringBuilder[] variants = new StringBuilder[Character.MAX_VALUE + 1];
+			for (int i = 0; i <= Character.MAX_VALUE; i++) {
+				char fold = PegUtil.foldCase((char) i);
+				if (variants[fold] == null)
+					variants[fold] = new StringBuilder();
+				variants[fold].append((char) i);
+			}
+			String[] strings = new String[variants.length];
+			for (int i = 0; i < variants.length; i++) {
+				if (variants[i] != null)
+					strings[i] = variants[i].toString();
+			}
+			caseVariants = strings;
+		}
+		return of(caseVariants[PegUtil.foldCase(c)]);
+	}
+
+	/**
+	 * Set of the chars in a string.
+	 */
+	public static CharSet of(String chars) {
+		CharSet set = EMPTY;
+		for (int i = 0; i < chars.length(); i++)
+			set = set.union(of(chars.charAt(i)));
+		return set;
+	}
+
+	public boolean isEmpty() {
+		return ranges.length == 0;
+	}
+
+	public boolean contains(char c) {
+		int lo = 0;
+		int hi = ranges.length / 2;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (c < ranges[2*mid])
+				hi = mid;
+			else if (c > ranges[2*mid+1])
+				lo = mid + 1;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Number of chars in the set.
+	 */
+	public int size() {
+		int n = 0;
+		for (int i = 0; i < ranges.length; i += 2)
+			n += ranges[i+1] - ranges[i] + 1;
+		return n;
+	}
+
+	/**
+	 * Number of ranges in the set.
+	 */
+	public int rangeCount() {
+		return ranges.length / 2;
+	}
+
+	public char rangeLo(int i) {
+		return (char) ranges[2*i];
+	}
+
+	public char rangeHi(int i) {
+		return (char) ranges[2*i+1];
+	}
+
+	public CharSet union(CharSet other) {
+		if (other.isEmpty()) return this;
+		if (isEmpty()) return other;
+		int[] buf = new int[ranges.length + other.ranges.length];
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		while (i < ranges.length || j < other.ranges.length) {
+			int lo, hi;
+			if (j >= other.ranges.length || (i < ranges.length && ranges[i] <= other.ranges[j])) {
+				lo = ranges[i];
+				hi = ranges[i+1];
+				i += 2;
+			}
+			else {
+				lo = other.ranges[j];
+				hi = other.ranges[j+1];
+				j += 2;
+			}
+			if (n > 0 && lo <= buf[n-1] + 1) {
+				if (hi > buf[n-1])
+					buf[n-1] = hi;
+			}
+			else {
+				buf[n++] = lo;
+				buf[n++] = hi;
+			}
+		}
+		return new CharSet(trim(buf, n));
+	}
+
+	public CharSet complement() {
+		int[] buf = new int[ranges.length + 2];
+		int n = 0;
+		int next = 0;
+		for (int i = 0; i < ranges.length; i += 2) {
+			if (ranges[i] > next) {
+				buf[n++] = next;
+				buf[n++] = ranges[i] - 1;
+			}
+			next = ranges[i+1] + 1;
+		}
+		if (next <= Character.MAX_VALUE) {
+			buf[n++] = next;
+			buf[n++] = Character.MAX_VALUE;
+		}
+		return new CharSet(trim(buf, n));
+	}
+
+	public CharSet intersection(CharSet other) {
+		return complement().union(other.complement()).complement();
+	}
+
+	public CharSet minus(CharSet other) {
+		return intersection(other.complement());
+	}
+
+	public boolean intersects(CharSet other) {
+		int i = 0;
+		int j = 0;
+		while (i < ranges.length && j < other.ranges.length) {
+			if (ranges[i+1] < other.ranges[j])
+				i += 2;
+			else if (other.ranges[j+1] < ranges[i])
+				j += 2;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	private static int[] trim(int[] buf, int n) {
+		if (n == buf.length) return buf;
+		int[] tmp = new int[n];
+		System.arraycopy(buf, 0, tmp, 0, n);
+		return tmp;
+	}
+
+	public boolean equals(Object obj) {
+		return obj instanceof CharSet && java.util.Arrays.equals(ranges, ((CharSet) obj).ranges);
+	}
+
+	public int hashCode() {
+		return java.util.Arrays.hashCode(ranges);
+	}
+
+	/**
+	 * The set written as a PEG class, e.g. [0-9a-f].
+	 */
+	public String toString() {
+		if (ranges.length == 2 && ranges[0] == 0 && ranges[1] == Character.MAX_VALUE)
+			return ".";
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < ranges.length; i += 2) {
+			appendChar(sb, ranges[i]);
+			if (ranges[i+1] != ranges[i]) {
+				if (ranges[i+1] > ranges[i] + 1)
+					sb.append('-');
+				appendChar(sb, ranges[i+1]);
+			}
+		}
+		return sb.append(']').toString();
+	}
+
+	private static void appendChar(StringBuilder sb, int c) {
+		switch (c) {
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			case '\\':
+			case '[':
+			case ']':
+			case '-':
+				sb.append('\\').append((char) c);
+				break;
+			default:
+				if (c < ' ' || c > '~')
+					sb.append(String.format("\\%04x", c));
+				else
+					sb.append((char) c);
+		}
+	}
+}
@@ -0,0 +1,445 @@
+/*******************************************************************************
+ * Copyright (C) 2003-2012 Bob Foster. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *    Bob Foster, initial API and implementation.
+ *******************************************************************************/
+
+package org.genantics.peggen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Minimized deterministic automaton for a PEG expression made only
+ * of chars, sequences, ordered choices and repetitions.
+ *
+ * <p>A PEG commits to the first alternative that matches and
+ * repeats as long as it can, so in general it doesn't match what a
+ * regular expression of the same form would. But if the position
+ * automaton of the expression is deterministic, each char decides
+ * every choice and repetition before the PEG could backtrack, and
+ * the PEG matches exactly the longest prefix the automaton accepts.
+ * Only such expressions are compiled; for others build returns
+ * null.</p>
+ *
+ * <p>The chars are divided into classes that every state treats
+ * alike, so the transition table has a column per class.</p>
+ *
+ * @author Bob Foster
+ */
+public final class Dfa {
+
+	private static final int CHARS = 0;
+	private static final int EMPTY_EXPR = 1;
+	private static final int SEQ = 2;
+	private static final int ALT = 3;
+	private static final int STAR = 4;
+
+	/**
+	 * Expression to compile. Null stands for one that can't be, and
+	 * the factory methods pass it on.
+	 */
+	public static final class Expr {
+		final int kind;
+		final CharSet set;
+		final Expr left;
+		final Expr right;
+		final boolean nullable;
+		final int size;
+		final boolean repeats;
+
+		Expr(int kind, CharSet set, Expr left, Expr right, boolean nullable) {
+			this.kind = kind;
+			this.set = set;
+			this.left = left;
+			this.right = right;
+			this.nullable = nullable;
+			this.size = 1 + (left == null ? 0 : left.size) + (right == null ? 0 : right.size);
+			this.repeats = kind == STAR || left != null && left.repeats || right != null && right.repeats;
+		}
+
+		/**
+		 * True if the expression has a repetition. Without one it
+		 * matches a few chars at most, which plain code does as fast.
+		 */
+		public boolean repeats() {
+			return repeats;
+		}
+	}
+
+	public static final Expr EMPTY = new Expr(EMPTY_EXPR, null, null, null, true);
+
+	/**
+	 * One char of the set.
+	 */
+	public static Expr chars(CharSet set) {
+		return new Expr(CHARS, set, null, null, false);
+	}
+
+	public static Expr seq(Expr a, Expr b) {
+		if (a == null || b == null)
+			return null;
+		if (a == EMPTY)
+			return b;
+		if (b == EMPTY)
+			return a;
+		return new Expr(SEQ, null, a, b, a.nullable && b.nullable);
+	}
+
+	/**
+	 * Ordered choice. Alternatives after one that can match
+	 * nothing are never tried, which no automaton can tell, so
+	 * such a choice can't be compiled. A class tried after another
+	 * only gets the chars the first doesn't take.
+	 */
+	public static Expr alt(Expr a, Expr b) {
+		if (a == null || b == null || a.nullable)
+			return null;
+		if (b.kind == CHARS) {
+			CharSet first = firstChars(a);
+			if (first != null)
+				return new Expr(ALT, null, a, chars(b.set.minus(first)), false);
+		}
+		return new Expr(ALT, null, a, b, b.nullable);
+	}
+
+	/**
+	 * The chars a matches if it always matches exactly one, or null.
+	 */
+	private static CharSet firstChars(Expr a) {
+		if (a.kind == CHARS)
+			return a.set;
+		if (a.kind == ALT) {
+			CharSet left = firstChars(a.left);
+			CharSet right = firstChars(a.right);
+			if (left != null && right != null)
+				return left.union(right);
+		}
+		return null;
+	}
+
+	public static Expr opt(Expr a) {
+		if (a == null)
+			return null;
+		if (a.nullable)
+			return a;
+		return new Expr(ALT, null, a, EMPTY, true);
+	}
+
+	/**
+	 * Zero or more. A PEG repetition of an expression that can match
+	 * nothing never ends, so it can't be compiled.
+	 */
+	public static Expr star(Expr a) {
+		if (a == null || a.nullable)
+			return null;
+		return new Expr(STAR, null, a, null, true);
+	}
+
+	public static Expr plus(Expr a) {
+		return seq(a, star(a));
+	}
+
+	// states are ordered so the accepting ones come last
+	private int[][] next;
+	private int start;
+	private int accepting;
+	private CharSet[] classes;
+	private int[] ascii;
+
+	private Dfa() {
+	}
+
+	/**
+	 * Compile e, or return null if the automaton can't match as the
+	 * PEG does, or has more than maxCells transitions.
+	 */
+	public static Dfa build(Expr e, int maxCells) {
+		if (e == null || e.size > maxCells)
+			return null;
+		Builder b = new Builder();
+		Builder.Info root = b.walk(e);
+
+		// the position automaton is deterministic if the chars of
+		// the positions that can come first, or follow any one
+		// position, don't overlap
+		if (!disjoint(root.first, b.sets))
+			return null;
+		for (BitSet follow : b.follow) {
+			if (!disjoint(follow, b.sets))
+				return null;
+		}
+
+		// cut the chars into the ranges between set boundaries
+		ArrayList<Integer> bounds = new ArrayList<Integer>();
+		for (CharSet set : b.sets) {
+			for (int i = 0; i < set.rangeCount(); i++) {
+				bounds.add((int) set.rangeLo(i));
+				bounds.add(set.rangeHi(i) + 1);
+			}
+		}
+		bounds.add(0);
+		bounds.add(Character.MAX_VALUE + 1);
+		int[] cut = new int[bounds.size()];
+		for (int i = 0; i < cut.length; i++)
+			cut[i] = bounds.get(i);
+		Arrays.sort(cut);
+		int n = 0;
+		for (int i = 0; i < cut.length; i++) {
+			if (n == 0 || cut[i] != cut[n-1])
+				cut[n++] = cut[i];
+		}
+		int ranges = n - 1;
+
+		// state 0 is the start, state p+1 follows position p
+		int positions = b.sets.size();
+		int states = positions + 1;
+		int[][] move = new int[states][ranges];
+		boolean[] accept = new boolean[states];
+		for (int s = 0; s < states; s++) {
+			Arrays.fill(move[s], -1);
+			BitSet follow = s == 0 ? root.first : b.follow.get(s-1);
+			for (int p = follow.nextSetBit(0); p >= 0; p = follow.nextSetBit(p+1)) {
+				CharSet set = b.sets.get(p);
+				for (int r = 0; r < ranges; r++) {
+					if (set.contains((char) cut[r]))
+						move[s][r] = p + 1;
+				}
+			}
+			accept[s] = s == 0 ? root.nullable : root.last.get(s-1);
+		}
+
+		// keep the states the start reaches
+		int[] reached = new int[states];
+		Arrays.fill(reached, -1);
+		int[] order = new int[states];
+		int count = 0;
+		reached[0] = count;
+		order[count++] = 0;
+		for (int i = 0; i < count; i++) {
+			for (int r = 0; r < ranges; r++) {
+				int t = move[order[i]][r];
+				if (t >= 0 && reached[t] < 0) {
+					reached[t] = count;
+					order[count++] = t;
+				}
+			}
+		}
+
+		// merge states until no two in a group can be told apart
+		int[] group = new int[count];
+		for (int i = 0; i < count; i++)
+			group[i] = accept[order[i]] ? 1 : 0;
+		int groups = 0;
+		while (true) {
+			HashMap<String,Integer> ids = new HashMap<String,Integer>();
+			int[] refined = new int[count];
+			for (int i = 0; i < count; i++) {
+				StringBuilder key = new StringBuilder();
+				key.append(group[i]);
+				for (int r = 0; r < ranges; r++) {
+					int t = move[order[i]][r];
+					key.append(',').append(t < 0 ? -1 : group[reached[t]]);
+				}
+				Integer id = ids.get(key.toString());
+				if (id == null) {
+					id = ids.size();
+					ids.put(key.toString(), id);
+				}
+				refined[i] = id;
+			}
+			boolean same = ids.size() == groups;
+			groups = ids.size();
+			group = refined;
+			if (same)
+				break;
+		}
+
+		// number the groups, accepting ones last
+		int[] number = new int[groups];
+		Arrays.fill(number, -1);
+		Dfa dfa = new Dfa();
+		int k = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			if (pass == 1)
+				dfa.accepting = k;
+			for (int i = 0; i < count; i++) {
+				if (number[group[i]] < 0 && accept[order[i]] == (pass == 1))
+					number[group[i]] = k++;
+			}
+		}
+		int[][] table = new int[groups][ranges];
+		for (int i = 0; i < count; i++) {
+			for (int r = 0; r < ranges; r++) {
+				int t = move[order[i]][r];
+				table[number[group[i]]][r] = t < 0 ? -1 : number[group[reached[t]]];
+			}
+		}
+		dfa.start = number[group[0]];
+
+		// ranges that every state treats alike are one class
+		HashMap<String,Integer> columns = new HashMap<String,Integer>();
+		ArrayList<CharSet> classes = new ArrayList<CharSet>();
+		ArrayList<Integer> firstRange = new ArrayList<Integer>();
+		int[] classOf = new int[ranges];
+		for (int r = 0; r < ranges; r++) {
+			StringBuilder key = new StringBuilder();
+			for (int s = 0; s < groups; s++)
+				key.append(table[s][r]).append(',');
+			Integer c = columns.get(key.toString());
+			CharSet set = CharSet.range((char) cut[r], (char) (cut[r+1] - 1));
+			if (c == null) {
+				c = classes.size();
+				columns.put(key.toString(), c);
+				classes.add(set);
+				firstRange.add(r);
+			}
+			else
+				classes.set(c, classes.get(c).union(set));
+			classOf[r] = c;
+		}
+		if ((long) groups * classes.size() > maxCells)
+			return null;
+		dfa.classes = classes.toArray(new CharSet[classes.size()]);
+		dfa.next = new int[groups][classes.size()];
+		for (int s = 0; s < groups; s++) {
+			for (int c = 0; c < classes.size(); c++)
+				dfa.next[s][c] = table[s][firstRange.get(c)];
+		}
+		dfa.ascii = new int[128];
+		for (int r = 0; r < ranges && cut[r] < 128; r++) {
+			for (int c = cut[r]; c < cut[r+1] && c < 128; c++)
+				dfa.ascii[c] = classOf[r];
+		}
+		return dfa;
+	}
+
+	private static boolean disjoint(BitSet positions, ArrayList<CharSet> sets) {
+		CharSet seen = CharSet.EMPTY;
+		for (int p = positions.nextSetBit(0); p >= 0; p = positions.nextSetBit(p+1)) {
+			CharSet set = sets.get(p);
+			if (seen.intersects(set))
+				return false;
+			seen = seen.union(set);
+		}
+		return true;
+	}
+
+	/**
+	 * Numbers the chars of an expression as positions and finds
+	 * which can follow which.
+	 */
+	private static final class Builder {
+		final ArrayList<CharSet> sets = new ArrayList<CharSet>();
+		final ArrayList<BitSet> follow = new ArrayList<BitSet>();
+
+		static final class Info {
+			BitSet first = new BitSet();
+			BitSet last = new BitSet();
+			boolean nullable;
+		}
+
+		Info walk(Expr e) {
+			Info info = new Info();
+			switch (e.kind) {
+				case CHARS:
+					int p = sets.size();
+					sets.add(e.set);
+					follow.add(new BitSet());
+					info.first.set(p);
+					info.last.set(p);
+					break;
+				case EMPTY_EXPR:
+					info.nullable = true;
+					break;
+				case SEQ: {
+					Info a = walk(e.left);
+					Info b = walk(e.right);
+					for (int q = a.last.nextSetBit(0); q >= 0; q = a.last.nextSetBit(q+1))
+						follow.get(q).or(b.first);
+					info.first.or(a.first);
+					if (a.nullable)
+						info.first.or(b.first);
+					info.last.or(b.last);
+					if (b.nullable)
+						info.last.or(a.last);
+					info.nullable = a.nullable && b.nullable;
+					break;
+				}
+				case ALT: {
+					Info a = walk(e.left);
+					Info b = walk(e.right);
+					info.first.or(a.first);
+					info.first.or(b.first);
+					info.last.or(a.last);
+					info.last.or(b.last);
+					info.nullable = a.nullable || b.nullable;
+					break;
+				}
+				case STAR: {
+					Info a = walk(e.left);
+					for (int q = a.last.nextSetBit(0); q >= 0; q = a.last.nextSetBit(q+1))
+						follow.get(q).or(a.first);
+					info.first.or(a.first);
+					info.last.or(a.last);
+					info.nullable = true;
+					break;
+				}
+			}
+			return info;
+		}
+	}
+
+	public int stateCount() {
+		return next.length;
+	}
+
+	public int classCount() {
+		return classes.length;
+	}
+
+	public int start() {
+		return start;
+	}
+
+	/**
+	 * States from this one on accept.
+	 */
+	public int firstAccepting() {
+		return accepting;
+	}
+
+	/**
+	 * The state after a char of class c in state s, or -1.
+	 */
+	public int next(int s, int c) {
+		return next[s][c];
+	}
+
+	/**
+	 * The class of an ASCII char.
+	 */
+	public int classOf(char c) {
+		return ascii[c];
+	}
+
+	public CharSet classSet(int c) {
+		return classes[c];
+	}
+}
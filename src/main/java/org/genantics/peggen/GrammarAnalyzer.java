@@ -0,0 +1,570 @@
+/*******************************************************************************
+ * Copyright (C) 2003-2012 Bob Foster. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *    Bob Foster, initial API and implementation.
+ *******************************************************************************/
+
+package org.genantics.peggen;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Static analysis of a grammar parse tree, as produced by Parser.
+ *
+ * <p>Computes, for every rule and expression, whether it can succeed
+ * without consuming input (nullable) and the set of chars it can start
+ * with when it does consume input (FIRST). FIRST sets are conservative:
+ * an expression may fail on a char in its FIRST set, but never succeeds
+ * consuming input that starts with a char outside it.</p>
+ *
+ * <p>Using these, reports left recursion, which overflows the stack
+ * at parse time, and repetition of nullable expressions, which loops
+ * forever.</p>
+ *
+ * <p>In BNF (::=) rules the WS rule is called after every literal,
+ * class and non-BNF rule reference, and that is reflected in the
+ * results.</p>
+ *
+ * @author Bob Foster
+ */
+public class GrammarAnalyzer {
+
+	/** FIRST set of the WS rule generated for BNF grammars. */
+	public static final CharSet WS_FIRST = CharSet.of(" \t\r\n");
+
+	private final char[] in;
+	private final LinkedHashMap<String,Node> definitions = new LinkedHashMap<String,Node>();
+	private final HashMap<String,Boolean> ruleNullable = new HashMap<String,Boolean>();
+	private final HashMap<String,CharSet> ruleFirst = new HashMap<String,CharSet>();
+	private final IdentityHashMap<Node,Boolean> nullableCache = new IdentityHashMap<Node,Boolean>();
+	private final IdentityHashMap<Node,CharSet> firstCache = new IdentityHashMap<Node,CharSet>();
+	private final Set<String> leftRecursive = new LinkedHashSet<String>();
+	private final IdentityHashMap<Node,UnicodeClass> unicodeClasses = new IdentityHashMap<Node,UnicodeClass>();
+	private final LinkedList<String> errors = new LinkedList<String>();
+	private boolean done;
+
+	/**
+	 * Analyze a grammar.
+	 * @param grammar Grammar node, root of the parse tree.
+	 * @param in Grammar text.
+	 */
+	public GrammarAnalyzer(Node grammar, char[] in) {
+		this.in = in;
+		for (Node defn = grammar.child; defn != null; defn = defn.next) {
+			if (defn.name == "Definition" || defn.name == "BNFDefinition") {
+				String name = PegUtil.strip(in, defn.child);
+				if (!definitions.containsKey(name))
+					definitions.put(name, defn);
+			}
+		}
+		computeFixpoint();
+		done = true;
+		checkLeftRecursion();
+		for (Node defn : definitions.values()) {
+			checkLoops(body(defn), isBNF(defn));
+			checkClasses(body(defn));
+		}
+	}
+
+	/**
+	 * Returns error messages, three lines per error in the style
+	 * of Parser, or null if there are none.
+	 */
+	public List<String> getErrors() {
+		return errors.isEmpty() ? null : errors;
+	}
+
+	public Set<String> getRuleNames() {
+		return definitions.keySet();
+	}
+
+	/**
+	 * Returns the Definition or BNFDefinition node of a rule, or null.
+	 */
+	public Node getDefinition(String rule) {
+		return definitions.get(rule);
+	}
+
+	/**
+	 * Returns the expression node that is the body of a definition,
+	 * or null if the body is empty.
+	 */
+	public static Node body(Node defn) {
+		Node expr = defn.child.next;
+		if (expr != null && expr.name == "DEFSUPPRESS")
+			expr = expr.next;
+		return expr;
+	}
+
+	public static boolean isBNF(Node defn) {
+		return defn.name == "BNFDefinition";
+	}
+
+	public boolean isNullable(String rule) {
+		Boolean b = ruleNullable.get(rule);
+		if (b == null)
+			return nullableSpecial(rule);
+		return b.booleanValue();
+	}
+
+	public CharSet getFirst(String rule) {
+		CharSet set = ruleFirst.get(rule);
+		if (set == null)
+			return firstSpecial(rule);
+		return set;
+	}
+
+	/**
+	 * Nullability of an expression in the body of a rule.
+	 * @param bnf True if the rule is a BNF rule.
+	 */
+	public boolean isNullable(Node expr, boolean bnf) {
+		return nullable(expr, bnf);
+	}
+
+	/**
+	 * FIRST set of an expression in the body of a rule.
+	 * @param bnf True if the rule is a BNF rule.
+	 */
+	public CharSet getFirst(Node expr, boolean bnf) {
+		return first(expr, bnf);
+	}
+
+	/**
+	 * Rules that can call themselves without consuming input.
+	 */
+	public Set<String> getLeftRecursive() {
+		return leftRecursive;
+	}
+
+	/**
+	 * Rules referenced by the body of a rule, including the
+	 * WS calls implied in BNF rules.
+	 */
+	public Set<String> getReferences(String rule) {
+		Set<String> refs = new LinkedHashSet<String>();
+		Node defn = definitions.get(rule);
+		if (defn != null)
+			collectReferences(body(defn), isBNF(defn), refs);
+		return refs;
+	}
+
+	private void collectReferences(Node e, boolean bnf, Set<String> refs) {
+		if (e == null) return;
+		switch (PegNodeVisitor.nodeId(e.name)) {
+			case PegNodeVisitor.IDENTIFIER :
+			case PegNodeVisitor.SPECIALIDENTIFIER :
+			{
+				String id = PegUtil.strip(in, e);
+				refs.add(id);
+				if (callsWS(e, bnf))
+					refs.add("WS");
+				break;
+			}
+			case PegNodeVisitor.LITERAL :
+			case PegNodeVisitor.CLASS :
+				if (callsWS(e, bnf))
+					refs.add("WS");
+				break;
+			case PegNodeVisitor.ERROR :
+				break;
+			default :
+				for (Node child = e.child; child != null; child = child.next)
+					collectReferences(child, bnf, refs);
+		}
+	}
+
+	/**
+	 * Rules referenced inside & and ! predicates in any rule.
+	 */
+	public Set<String> getPredicateReferences() {
+		Set<String> refs = new LinkedHashSet<String>();
+		for (Node defn : definitions.values())
+			collectPredicateReferences(body(defn), isBNF(defn), refs);
+		return refs;
+	}
+
+	private void collectPredicateReferences(Node e, boolean bnf, Set<String> refs) {
+		if (e == null) return;
+		if (e.name == "Prefix")
+			collectReferences(e.child.next, bnf, refs);
+		else {
+			for (Node child = e.child; child != null; child = child.next)
+				collectPredicateReferences(child, bnf, refs);
+		}
+	}
+
+	/**
+	 * Rules reachable from a start rule, including the start rule.
+	 */
+	public Set<String> getReachable(String start) {
+		Set<String> reached = new LinkedHashSet<String>();
+		LinkedList<String> work = new LinkedList<String>();
+		work.add(start);
+		while (!work.isEmpty()) {
+			String rule = work.removeFirst();
+			if (definitions.containsKey(rule) && reached.add(rule))
+				work.addAll(getReferences(rule));
+		}
+		return reached;
+	}
+
+	/**
+	 * True if the generated code calls WS after the leaf expression e.
+	 */
+	public boolean callsWS(Node e, boolean bnf) {
+		if (!bnf) return false;
+		switch (PegNodeVisitor.nodeId(e.name)) {
+			case PegNodeVisitor.LITERAL :
+			case PegNodeVisitor.CLASS :
+				return e.child != null;
+			case PegNodeVisitor.IDENTIFIER :
+			case PegNodeVisitor.SPECIALIDENTIFIER :
+			{
+				Node defn = definitions.get(PegUtil.strip(in, e));
+				return defn == null || !isBNF(defn);
+			}
+		}
+		return false;
+	}
+
+	private void computeFixpoint() {
+		for (String rule : definitions.keySet()) {
+			ruleNullable.put(rule, Boolean.FALSE);
+			ruleFirst.put(rule, CharSet.EMPTY);
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (String rule : definitions.keySet()) {
+				Node defn = definitions.get(rule);
+				Node expr = body(defn);
+				boolean n = nullable(expr, isBNF(defn));
+				CharSet f = first(expr, isBNF(defn));
+				if (n != ruleNullable.get(rule).booleanValue() || !f.equals(ruleFirst.get(rule))) {
+					ruleNullable.put(rule, Boolean.valueOf(n));
+					ruleFirst.put(rule, f);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private boolean nullableSpecial(String id) {
+		// $WS fails unless it consumes something; the WS generated
+		// for BNF grammars, $Error, $Indent and $Outdent are zero-width
+		return !id.equals("$WS");
+	}
+
+	private CharSet firstSpecial(String id) {
+		if (id.equals("$WS") || id.equals("WS"))
+			return WS_FIRST;
+		return CharSet.EMPTY;
+	}
+
+	private boolean nullable(Node e, boolean bnf) {
+		if (e == null) return true;
+		if (done) {
+			Boolean b = nullableCache.get(e);
+			if (b != null) return b.booleanValue();
+		}
+		boolean result;
+		switch (PegNodeVisitor.nodeId(e.name)) {
+			case PegNodeVisitor.EXPRESSION :
+				result = false;
+				for (Node alt = e.child; alt != null; alt = alt.next)
+					result |= nullable(alt, bnf);
+				break;
+			case PegNodeVisitor.SEQUENCE :
+				result = true;
+				for (Node elt = e.child; elt != null; elt = elt.next)
+					result &= nullable(elt, bnf);
+				break;
+			case PegNodeVisitor.PREFIX :
+				result = true;
+				break;
+			case PegNodeVisitor.SUFFIX :
+				result = e.child.next.name == "PLUS" ? nullable(e.child, bnf) : true;
+				break;
+			case PegNodeVisitor.SUPPRESSPRIMARY :
+			case PegNodeVisitor.PRIMARY :
+			case PegNodeVisitor.TERM :
+				result = nullable(e.child, bnf);
+				break;
+			case PegNodeVisitor.IDENTIFIER :
+			case PegNodeVisitor.SPECIALIDENTIFIER :
+				result = isNullable(PegUtil.strip(in, e));
+				break;
+			case PegNodeVisitor.LITERAL :
+				result = e.child == null;
+				break;
+			case PegNodeVisitor.DOT :
+				result = false;
+				break;
+			case PegNodeVisitor.CLASS :
+				// [] generates no code, so matches without consuming
+				result = e.child == null;
+				break;
+			default :
+				result = true;
+		}
+		if (done)
+			nullableCache.put(e, Boolean.valueOf(result));
+		return result;
+	}
+
+	private CharSet first(Node e, boolean bnf) {
+		if (e == null) return CharSet.EMPTY;
+		if (done) {
+			CharSet set = firstCache.get(e);
+			if (set != null) return set;
+		}
+		CharSet result;
+		switch (PegNodeVisitor.nodeId(e.name)) {
+			case PegNodeVisitor.EXPRESSION :
+				result = CharSet.EMPTY;
+				for (Node alt = e.child; alt != null; alt = alt.next)
+					result = result.union(first(alt, bnf));
+				break;
+			case PegNodeVisitor.SEQUENCE :
+				result = CharSet.EMPTY;
+				for (Node elt = e.child; elt != null; elt = elt.next) {
+					result = result.union(first(elt, bnf));
+					if (!nullable(elt, bnf))
+						break;
+				}
+				break;
+			case PegNodeVisitor.PREFIX :
+				result = CharSet.EMPTY;
+				break;
+			case PegNodeVisitor.SUFFIX :
+			case PegNodeVisitor.SUPPRESSPRIMARY :
+			case PegNodeVisitor.PRIMARY :
+			case PegNodeVisitor.TERM :
+				result = first(e.child, bnf);
+				break;
+			case PegNodeVisitor.ERROR :
+				result = CharSet.EMPTY;
+				break;
+			case PegNodeVisitor.IDENTIFIER :
+			case PegNodeVisitor.SPECIALIDENTIFIER :
+				result = getFirst(PegUtil.strip(in, e));
+				break;
+			case PegNodeVisitor.LITERAL :
+				if (e.child == null)
+					result = CharSet.EMPTY;
+				else if (PegUtil.isNoCase(e))
+					result = CharSet.ofIgnoreCase(decodeChar(e.child));
+				else
+					result = CharSet.of(decodeChar(e.child));
+				break;
+			case PegNodeVisitor.DOT :
+				result = CharSet.ALL;
+				break;
+			case PegNodeVisitor.CLASS :
+				result = classSet(e);
+				break;
+			default :
+				result = CharSet.ALL;
+		}
+		if (callsWS(e, bnf) && nullable(e, bnf))
+			result = result.union(getFirst("WS"));
+		if (done)
+			firstCache.put(e, result);
+		return result;
+	}
+
+	/**
+	 * The chars matched by a Class node.
+	 */
+	public CharSet classSet(Node cls) {
+		UnicodeClass unicode = unicodeClass(cls);
+		if (unicode != null)
+			return unicode.firstChars();
+		CharSet set = CharSet.EMPTY;
+		for (Node range = cls.child; range != null; range = range.next) {
+			Node c1 = range.child;
+			Node c2 = c1.next;
+			if (c2 == null)
+				set = set.union(CharSet.of(decodeChar(c1)));
+			else
+				set = set.union(CharSet.range(decodeChar(c1), decodeChar(c2)));
+		}
+		return set;
+	}
+
+	private char decodeChar(Node c) {
+		return PegUtil.decodeChar(new String(in, c.offset, c.length));
+	}
+
+	/**
+	 * The code points matched by a Class node with a Unicode category
+	 * or a supplementary code point, or null if the class can be
+	 * matched a char at a time. A surrogate pair written as two chars
+	 * is taken as one code point.
+	 */
+	public UnicodeClass unicodeClass(Node cls) {
+		if (unicodeClasses.containsKey(cls))
+			return unicodeClasses.get(cls);
+		UnicodeClass unicode = new UnicodeClass();
+		boolean category = false;
+		for (Node range = cls.child; range != null; range = range.next) {
+			if (range.name == "Category") {
+				category = true;
+				String rep = new String(in, range.offset, range.length);
+				String name = rep.substring(3, rep.length()-1);
+				if (!unicode.addProperty(name, rep.charAt(1) == 'P'))
+					error(range.offset, "Unknown Unicode category or script "+name);
+				continue;
+			}
+			Node c1 = range.child;
+			Node c2 = c1.next;
+			int lo = decodeCodePoint(c1);
+			int hi = c2 == null ? lo : decodeCodePoint(c2);
+			Node pair = range.next;
+			if (c2 == null && Character.isHighSurrogate((char) lo) && pair != null
+				&& pair.name == "Range" && pair.child.next == null
+				&& Character.isLowSurrogate(decodeChar(pair.child))) {
+				lo = hi = Character.toCodePoint((char) lo, decodeChar(pair.child));
+				range = pair;
+			}
+			unicode.add(lo, hi);
+		}
+		if (!category && !unicode.isSupplementary())
+			unicode = null;
+		unicodeClasses.put(cls, unicode);
+		return unicode;
+	}
+
+	private int decodeCodePoint(Node c) {
+		return PegUtil.decodeCodePoint(new String(in, c.offset, c.length));
+	}
+
+	/**
+	 * Rules called by e at the position where e starts.
+	 */
+	private void leftCalls(Node e, boolean bnf, Set<String> calls) {
+		if (e == null) return;
+		switch (PegNodeVisitor.nodeId(e.name)) {
+			case PegNodeVisitor.SEQUENCE :
+				for (Node elt = e.child; elt != null; elt = elt.next) {
+					leftCalls(elt, bnf, calls);
+					if (!nullable(elt, bnf))
+						break;
+				}
+				break;
+			case PegNodeVisitor.IDENTIFIER :
+			case PegNodeVisitor.SPECIALIDENTIFIER :
+			{
+				String id = PegUtil.strip(in, e);
+				calls.add(id);
+				if (callsWS(e, bnf) && isNullable(id))
+					calls.add("WS");
+				break;
+			}
+			case PegNodeVisitor.LITERAL :
+			case PegNodeVisitor.CLASS :
+				if (callsWS(e, bnf) && nullable(e, bnf))
+					calls.add("WS");
+				break;
+			case PegNodeVisitor.ERROR :
+				break;
+			default :
+				for (Node child = e.child; child != null; child = child.next)
+					leftCalls(child, bnf, calls);
+		}
+	}
+
+	private void checkLeftRecursion() {
+		HashMap<String,Set<String>> graph = new HashMap<String,Set<String>>();
+		for (String rule : definitions.keySet()) {
+			Node defn = definitions.get(rule);
+			Set<String> calls = new LinkedHashSet<String>();
+			leftCalls(body(defn), isBNF(defn), calls);
+			calls.retainAll(definitions.keySet());
+			graph.put(rule, calls);
+		}
+		// report one cycle through each rule not already reported
+		for (String rule : definitions.keySet()) {
+			if (leftRecursive.contains(rule))
+				continue;
+			List<String> cycle = findCycle(rule, graph);
+			if (cycle != null) {
+				leftRecursive.addAll(cycle);
+				StringBuilder sb = new StringBuilder("Left recursion ");
+				for (String r : cycle)
+					sb.append(r).append(" -> ");
+				sb.append(rule);
+				error(definitions.get(rule).child.offset, sb.toString());
+			}
+		}
+	}
+
+	private List<String> findCycle(String start, HashMap<String,Set<String>> graph) {
+		// breadth-first for the shortest cycle back to start
+		HashMap<String,String> from = new HashMap<String,String>();
+		LinkedList<String> work = new LinkedList<String>();
+		work.add(start);
+		HashSet<String> seen = new HashSet<String>();
+		while (!work.isEmpty()) {
+			String rule = work.removeFirst();
+			for (String callee : graph.get(rule)) {
+				if (callee.equals(start)) {
+					LinkedList<String> cycle = new LinkedList<String>();
+					for (String r = rule; r != null; r = from.get(r))
+						cycle.addFirst(r);
+					return cycle;
+				}
+				if (seen.add(callee)) {
+					from.put(callee, rule);
+					work.add(callee);
+				}
+			}
+		}
+		return null;
+	}
+
+	private void checkLoops(Node e, boolean bnf) {
+		if (e == null) return;
+		if (e.name == "Suffix") {
+			String op = e.child.next.name;
+			if ((op == "STAR" || op == "PLUS") && nullable(e.child, bnf))
+				error(e.offset, "Repetition of an expression that matches empty input loops forever");
+		}
+		for (Node child = e.child; child != null; child = child.next)
+			checkLoops(child, bnf);
+	}
+
+	private void checkClasses(Node e) {
+		if (e == null) return;
+		if (e.name == "Class")
+			unicodeClass(e);
+		for (Node child = e.child; child != null; child = child.next)
+			checkClasses(child);
+	}
+
+	private void error(int pos, String msg) {
+		PegUtil.addError(errors, in, pos, msg);
+	}
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (C) 2003-2012 Bob Foster. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *    Bob Foster, initial API and implementation.
+ *******************************************************************************/
+
+package org.genantics.peggen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+
+/**
+ * Rule statistics collected by a parser generated with -profile,
+ * read from the tables its getProfile() returns, to guide the
+ * generation of the same grammar.
+ *
+ * <p>The first table has a line per rule under a heading line that
+ * starts with "rule" and names the columns. The second, under a
+ * heading that starts with "choice", has a line per choice, named
+ * rule.n for the nth choice of the rule in grammar order, with the
+ * number of times each alternative matched.</p>
+ *
+ * @author Bob Foster
+ */
+public final class ParseProfile {
+
+	private static final String[] COLUMNS = {"calls", "memo", "retries"};
+	private static final int CALLS = 0;
+	private static final int MEMO = 1;
+	private static final int RETRIES = 2;
+
+	private final HashMap<String,long[]> rules = new HashMap<String,long[]>();
+	private final HashMap<String,long[]> choices = new HashMap<String,long[]>();
+	private long totalCalls;
+
+	public static ParseProfile read(Reader reader) throws IOException {
+		ParseProfile profile = new ParseProfile();
+		BufferedReader lines = new BufferedReader(reader);
+		// where each of COLUMNS is in the rule table, or -1
+		int[] index = null;
+		boolean inChoices = false;
+		String line;
+		while ((line = lines.readLine()) != null) {
+			String[] fields = line.trim().split("\\s+");
+			if (fields[0].length() == 0)
+				continue;
+			if (fields[0].equals("rule")) {
+				index = new int[COLUMNS.length];
+				for (int i = 0; i < COLUMNS.length; i++) {
+					index[i] = -1;
+					for (int j = 1; j < fields.length; j++) {
+						if (fields[j].equals(COLUMNS[i]))
+							index[i] = j;
+					}
+				}
+				inChoices = false;
+			}
+			else if (fields[0].equals("choice"))
+				inChoices = true;
+			else if (inChoices) {
+				long[] counts = new long[fields.length - 1];
+				for (int i = 1; i < fields.length; i++)
+					counts[i-1] = number(fields[i]);
+				profile.choices.put(fields[0], counts);
+			}
+			else if (index != null) {
+				long[] counts = new long[COLUMNS.length];
+				for (int i = 0; i < COLUMNS.length; i++) {
+					if (index[i] >= 0 && index[i] < fields.length)
+						counts[i] = number(fields[index[i]]);
+				}
+				profile.rules.put(fields[0], counts);
+				profile.totalCalls += counts[CALLS];
+			}
+		}
+		return profile;
+	}
+
+	private static long number(String field) throws IOException {
+		try {
+			return Long.parseLong(field);
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Not a profile count: " + field);
+		}
+	}
+
+	/**
+	 * True if the profile has a line for the rule.
+	 */
+	public boolean hasRule(String rule) {
+		return rules.containsKey(rule);
+	}
+
+	public long getCalls(String rule) {
+		return count(rule, CALLS);
+	}
+
+	/**
+	 * Calls of all the rules.
+	 */
+	public long getTotalCalls() {
+		return totalCalls;
+	}
+
+	/**
+	 * Calls answered by the one-slot memo of sameRule.
+	 */
+	public long getMemoHits(String rule) {
+		return count(rule, MEMO);
+	}
+
+	/**
+	 * Calls at a position the rule was called at before in the same
+	 * parse, including those answered by the memo.
+	 */
+	public long getRetries(String rule) {
+		return count(rule, RETRIES);
+	}
+
+	/**
+	 * The number of times each alternative of the choice-th choice
+	 * of rule matched, in grammar order, or null if not profiled.
+	 */
+	public long[] getAlternatives(String rule, int choice) {
+		return choices.get(rule + "." + choice);
+	}
+
+	private long count(String rule, int column) {
+		long[] counts = rules.get(rule);
+		return counts == null ? 0 : counts[column];
+	}
+}
@@ -610,7 +610,7 @@ public class Parser {
 	}
 
 	boolean ruleClass(Node parent) {
-		// Class <- '['~ (!(']' / Char '-]') Range)* ']'~ Spacing
+		// Class <- '['~ (!(']' / Char '-]') (Category / Range))* ']'~ Spacing
 		int outstart = outpos;
 		if (sameRule("Class")) return out[outstart].success;
 		Node rule = new Node("Class", parent, inpos);
@@ -634,7 +634,9 @@ public class Parser {
 				outpos = outmark1;
 				match = !match;
 				if (match) {
-					match = ruleRange(rule);
+					match = ruleCategory(rule);
+					if (!match)
+						match = ruleRange(rule);
 				}
 			} while (match);
 			match = true;
@@ -650,6 +652,31 @@ public class Parser {
 		return succeed(rule);
 	}
 
+	boolean ruleCategory(Node parent) {
+		// Category <- '\\' [pP] '{' [A-Za-z0-9_]+ '}' # Added
+		int outstart = outpos;
+		if (sameRule("Category")) return out[outstart].success;
+		Node rule = new Node("Category", parent, inpos);
+		out[outpos++] = rule;
+		
+		boolean match = matchChar('\\');
+		if (match)
+			match = matchSet("pP");
+		if (match)
+			match = matchChar('{');
+		if (match) {
+			int start = inpos;
+			while (matchRange("09AZaz") || matchChar('_'))
+				;
+			match = inpos > start;
+		}
+		if (match)
+			match = matchChar('}');
+		if (!match) return fail(rule, outstart);
+		
+		return succeed(rule);
+	}
+
 	boolean ruleRange(Node parent) {
 		// Range <- Char '-' Char / Char
 		int outstart = outpos;
@@ -680,6 +707,7 @@ public class Parser {
 	boolean ruleChar(Node parent) {
 		// Char <- '\\' [nrt'"\[\]\\]
 		// / '\\' [0-9A-Fa-f][0-9A-Fa-f][0-9A-Fa-f][0-9A-Fa-f] # Added
+		// / '\\' 'u{' [0-9A-Fa-f]+ '}' # Added, at most 10FFFF
 		// / '\\' [0-2][0-7][0-7]
 		// / '\\' [0-7][0-7]?
 		// / !'\\' .
@@ -705,6 +733,19 @@ public class Parser {
 				if (match)
 					match = matchRange("09AFaf");
 			}
+			if (!match) {
+				inpos = inmark1;
+				match = matchLiteral("u{");
+				if (match) {
+					int start = inpos;
+					while (inpos - start < 6 && matchRange("09AFaf"))
+						;
+					int n = inpos - start;
+					match = n > 0 && (n < 6 || in[start] == '1' && in[start+1] == '0');
+					if (match)
+						match = matchChar('}');
+				}
+			}
 			if (!match) {
 				inpos = inmark1;
 				match = matchRange("02");
@@ -734,8 +775,8 @@ public class Parser {
 	}
 
 	boolean ruleLiteral(Node parent) {
-		// Literal <- [']~ (!['] Char)* [']~ Spacing
-		// / ["]~ (!["] Char)* ["]~ Spacing
+		// Literal <- [']~ (!['] Char)* [']~ NOCASE? Spacing
+		// / ["]~ (!["] Char)* ["]~ NOCASE? Spacing
 		int outstart = outpos;
 		if (sameRule("Literal")) return out[outstart].success;
 		Node rule = new Node("Literal", parent, inpos);
@@ -779,6 +820,10 @@ public class Parser {
 				match = matchChar('"');
 			}
 		}
+		// an empty literal is the same either way
+		if (match && outpos > outstart + 1) {
+			ruleNOCASE(rule);
+		}
 		if (match) {
 			match = ruleSpacing(rule);
 		}
@@ -792,6 +837,27 @@ public class Parser {
 		return succeed(rule);
 	}
 
+	boolean ruleNOCASE(Node parent) {
+		// NOCASE <- 'i'~ !IdentCont # Added
+		int outstart = outpos;
+		if (sameRule("NOCASE")) return out[outstart].success;
+		
+		int inmark = inpos;
+		boolean match = matchChar('i');
+		if (match) {
+			match = !ruleIdentCont(parent);
+		}
+		if (!match) {
+			outpos = outstart;
+			inpos = inmark;
+			return false;
+		}
+		Node rule = new Node("NOCASE", parent, inmark);
+		out[outpos++] = rule;
+		
+		return succeed(rule);
+	}
+
 	boolean ruleCLOSE(Node parent) {
 		// CLOSE~ <- ')'~ Spacing~
 		return singleCharLexRule(parent, ')', "CLOSE");
@@ -43,28 +43,34 @@ public class PegGen {
 	
 	public static void main(String[] args)
 	{
-		if (args.length < 3 || args.length > 5)
-		{
-			System.out.println("Usage: java -jar peggen-1.0.jar input output startRule [packageName [className]]");
-			System.exit(1);
+		PegGen pegGen = new PegGen();
+		int argi = 0;
+		while (argi < args.length && args[argi].startsWith("-")) {
+			if (!pegGen.setOption(args[argi])) {
+				System.out.println("Unknown option "+args[argi]);
+				usage();
+			}
+			argi++;
 		}
-		File inputFile = new File(args[0]);
+		int nargs = args.length - argi;
+		if (nargs < 3 || nargs > 5)
+			usage();
+		File inputFile = new File(args[argi]);
 		if (!inputFile.exists())
 		{
-			System.out.println("Input file "+args[0]+" not found");
+			System.out.println("Input file "+args[argi]+" not found");
 			System.exit(1);
 		}
-		File outputFile = new File(args[1]);
-		String startRule = args[2];
+		File outputFile = new File(args[argi+1]);
+		String startRule = args[argi+2];
 		try {
 			PrintWriter writer = new PrintWriter(new BufferedOutputStream(new FileOutputStream(outputFile)));
 			String packageName = "";
-			if (args.length >= 4)
-				packageName = args[3];
+			if (nargs >= 4)
+				packageName = args[argi+3];
 			String className = "GeneratedParser";
-			if (args.length == 5)
-				className = args[4];
-			PegGen pegGen = new PegGen();
+			if (nargs == 5)
+				className = args[argi+4];
 			pegGen.generate(inputFile, writer, packageName, className, startRule);
 			writer.close();
 		} catch (IOException e) {
@@ -74,6 +80,271 @@ public class PegGen {
 		}
 	}
 	
+	private static void usage() {
+		System.out.println("Usage: java -jar peggen-1.0.jar [options] input output startRule [packageName [className]]");
+		System.out.println("Options:");
+		System.out.println("  -profile    instrument rules to collect statistics, see getProfile()");
+		System.out.println("  -jfr        emit a flight recorder event for each parse");
+		System.out.println("  -jfr-rules  emit a flight recorder event for each slow rule invocation");
+		System.out.println("  -inline[=n] inline small suppressed rules, up to n nodes (default "+DEFAULT_INLINE+")");
+		System.out.println("  -prune      omit rules not used by the start rule");
+		System.out.println("  -optimize   generate tighter code for the same parser");
+		System.out.println("  -recognizers  predicates match without building nodes");
+		System.out.println("  -method-limit=n  split rule methods over about n bytes of bytecode (default "
+			+SimplePegGenerator.DEFAULT_METHOD_LIMIT+", 0 for no limit)");
+		System.out.println("  -class-limit=n   split the parser into classes of about n constants (default "
+			+SimplePegGenerator.DEFAULT_CLASS_LIMIT+", 0 for no limit)");
+		System.out.println("  -max-depth=n  fail the parse when recursive rules nest over n deep");
+		System.out.println("  -positions  pass positions to char-only suppressed rules in locals");
+		System.out.println("  -arena      reuse nodes across parses, see release(Node[])");
+		System.out.println("  -tokens[=r1,r2,...]  remember where char-only rules end at each position");
+		System.out.println("              (default the rules with all-uppercase names)");
+		System.out.println("  -dfa        match regular char-only rules with table-driven automata");
+		System.out.println("  -limits     let parsers limit steps, time and nodes and stop when interrupted");
+		System.out.println("  -memo[=n]   memoize a rule once it is tried again at a position n times (default "+DEFAULT_MEMO+")");
+		System.out.println("  -use-profile=file  order alternatives, inline and memoize by the getProfile()");
+		System.out.println("              output of a -profile parser of the same grammar");
+		System.exit(1);
+	}
+	
+	private boolean profile;
+	private boolean jfrEvents;
+	private boolean jfrRuleEvents;
+	private int inline;
+	private boolean prune;
+	private boolean optimize;
+	private boolean recognizers;
+	private int methodLimit = SimplePegGenerator.DEFAULT_METHOD_LIMIT;
+	private int classLimit = SimplePegGenerator.DEFAULT_CLASS_LIMIT;
+	private int maxDepth;
+	private boolean positions;
+	private boolean arena;
+	private String tokens;
+	private boolean dfa;
+	private boolean limits;
+	private int memo;
+	private File useProfile;
+	
+	/** Size budget of -inline without a value. */
+	public static final int DEFAULT_INLINE = 6;
+	
+	/** Threshold of -memo without a value. */
+	public static final int DEFAULT_MEMO = 32;
+	
+	/**
+	 * Set an option given on the command line.
+	 * @return false if the option is not recognized.
+	 */
+	public boolean setOption(String option) {
+		if (option.equals("-profile"))
+			setProfile(true);
+		else if (option.equals("-jfr"))
+			setJfrEvents(true);
+		else if (option.equals("-jfr-rules"))
+			setJfrRuleEvents(true);
+		else if (option.equals("-inline"))
+			setInline(DEFAULT_INLINE);
+		else if (option.startsWith("-inline=")) {
+			try {
+				setInline(Integer.parseInt(option.substring(8)));
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		else if (option.equals("-prune"))
+			setPrune(true);
+		else if (option.equals("-optimize"))
+			setOptimize(true);
+		else if (option.equals("-recognizers"))
+			setRecognizers(true);
+		else if (option.equals("-positions"))
+			setPositions(true);
+		else if (option.equals("-arena"))
+			setArena(true);
+		else if (option.equals("-tokens"))
+			setTokens("");
+		else if (option.startsWith("-tokens="))
+			setTokens(option.substring(8));
+		else if (option.equals("-dfa"))
+			setDfa(true);
+		else if (option.equals("-limits"))
+			setLimits(true);
+		else if (option.equals("-memo"))
+			setMemo(DEFAULT_MEMO);
+		else if (option.startsWith("-memo=")) {
+			try {
+				setMemo(Integer.parseInt(option.substring(6)));
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		else if (option.startsWith("-use-profile="))
+			setUseProfile(new File(option.substring(13)));
+		else if (option.startsWith("-method-limit=")) {
+			try {
+				setMethodLimit(Integer.parseInt(option.substring(14)));
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		else if (option.startsWith("-class-limit=")) {
+			try {
+				setClassLimit(Integer.parseInt(option.substring(13)));
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		else if (option.startsWith("-max-depth=")) {
+			try {
+				setMaxDepth(Integer.parseInt(option.substring(11)));
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		else
+			return false;
+		return true;
+	}
+	
+	/**
+	 * Generate parsers that count calls, successes, failures,
+	 * mini-packrat hits, characters consumed and time spent per rule.
+	 */
+	public void setProfile(boolean profile) {
+		this.profile = profile;
+	}
+	
+	/**
+	 * Generate parsers that emit a flight recorder event per parse.
+	 */
+	public void setJfrEvents(boolean jfrEvents) {
+		this.jfrEvents = jfrEvents;
+	}
+	
+	/**
+	 * Generate parsers that emit a flight recorder event per rule
+	 * invocation over the event threshold.
+	 */
+	public void setJfrRuleEvents(boolean jfrRuleEvents) {
+		this.jfrRuleEvents = jfrRuleEvents;
+	}
+	
+	/**
+	 * Inline suppressed, non-recursive rules of at most budget
+	 * nodes at their call sites. 0 turns inlining off.
+	 */
+	public void setInline(int budget) {
+		this.inline = budget;
+	}
+	
+	/**
+	 * Generate only rules reachable from the start rule.
+	 */
+	public void setPrune(boolean prune) {
+		this.prune = prune;
+	}
+	
+	/**
+	 * Generate smaller rule methods that behave the same.
+	 */
+	public void setOptimize(boolean optimize) {
+		this.optimize = optimize;
+	}
+	
+	/**
+	 * Generate a node-free recognizer method for each rule used,
+	 * directly or indirectly, in a predicate.
+	 */
+	public void setRecognizers(boolean recognizers) {
+		this.recognizers = recognizers;
+	}
+	
+	/**
+	 * Split rule methods estimated to be larger than limit bytes
+	 * of bytecode into helper methods. 0 turns splitting off.
+	 */
+	public void setMethodLimit(int limit) {
+		this.methodLimit = limit;
+	}
+	
+	/**
+	 * Spread the rule methods over several classes when the parser
+	 * would have more than about limit constant pool entries.
+	 * 0 keeps everything in one class.
+	 */
+	public void setClassLimit(int limit) {
+		this.classLimit = limit;
+	}
+	
+	/**
+	 * Make parsers fail with an error, rather than overflow the
+	 * stack, when recursive rules nest more than depth deep.
+	 * 0 leaves nesting unchecked.
+	 */
+	public void setMaxDepth(int depth) {
+		this.maxDepth = depth;
+	}
+	
+	/**
+	 * Generate suppressed rules that only match characters as
+	 * methods from start position to end position, which keep the
+	 * position and input in locals.
+	 */
+	public void setPositions(boolean positions) {
+		this.positions = positions;
+	}
+	
+	/**
+	 * Generate parsers that keep the nodes of failed attempts and of
+	 * trees given back with release(Node[]) for later parses.
+	 */
+	public void setArena(boolean arena) {
+		this.arena = arena;
+	}
+	
+	/**
+	 * Memoize the char-only rules named in a comma-separated list,
+	 * or if the list is empty the rules with all-uppercase names,
+	 * as token rules. null turns this off.
+	 */
+	public void setTokens(String tokens) {
+		this.tokens = tokens;
+	}
+	
+	/**
+	 * Match char-only rules whose PEG meaning is regular with a
+	 * table-driven automaton. Implies -positions.
+	 */
+	public void setDfa(boolean dfa) {
+		this.dfa = dfa;
+	}
+	
+	/**
+	 * Generate parsers with setMaxSteps, setTimeout and setMaxNodes,
+	 * which also fail the parse when their thread is interrupted.
+	 */
+	public void setLimits(boolean limits) {
+		this.limits = limits;
+	}
+	
+	/**
+	 * Generate parsers that memoize a rule for the rest of a parse
+	 * once it has been tried again at a position threshold times.
+	 * 0 turns this off.
+	 */
+	public void setMemo(int threshold) {
+		this.memo = threshold;
+	}
+	
+	/**
+	 * Generate parsers to suit a profile, the text returned by
+	 * getProfile() of a parser of the same grammar generated with
+	 * -profile, or null for none.
+	 */
+	public void setUseProfile(File profileFile) {
+		this.useProfile = profileFile;
+	}
+	
 	public void generate(PrintWriter writer, String packageName, String className) throws IOException {
 		generate("com/objfac/peg/parser/peg.peg", writer, packageName, className, "Grammar");
 	}
@@ -99,7 +370,40 @@ public class PegGen {
 				System.out.println(it.next());
 		}
 		if (tree == null) return;
+		GrammarAnalyzer analyzer = new GrammarAnalyzer(tree[0], input);
+		list = analyzer.getErrors();
+		if (list != null) {
+			Iterator it = list.iterator();
+			while (it.hasNext())
+				System.out.println(it.next());
+			return;
+		}
 		SimplePegGenerator gen = new SimplePegGenerator();
+		gen.setProfile(profile);
+		gen.setJfrEvents(jfrEvents);
+		gen.setJfrRuleEvents(jfrRuleEvents);
+		gen.setInline(inline);
+		gen.setPrune(prune);
+		gen.setOptimize(optimize);
+		gen.setRecognizers(recognizers);
+		gen.setMethodLimit(methodLimit);
+		gen.setClassLimit(classLimit);
+		gen.setMaxDepth(maxDepth);
+		gen.setPositions(positions);
+		gen.setArena(arena);
+		gen.setTokens(tokens);
+		gen.setDfa(dfa);
+		gen.setLimits(limits);
+		gen.setMemo(memo);
+		if (useProfile != null) {
+			Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(useProfile)));
+			try {
+				gen.setProfileData(ParseProfile.read(reader));
+			}
+			finally {
+				reader.close();
+			}
+		}
 		gen.generate(tree[0], input, writer, packageName, className, startRule, "\t");
 	}
 
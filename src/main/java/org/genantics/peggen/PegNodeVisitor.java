@@ -43,6 +43,8 @@ public abstract class PegNodeVisitor {
 	public static final int ERROR = 22;
   public static final int BNFDEFINITION = 23;
   public static final int SPECIALIDENTIFIER = 24;
+	public static final int CATEGORY = 25;
+	public static final int NOCASE = 26;
 
 	public static final HashMap PEGMAP = new HashMap();
 	static {
@@ -73,13 +75,79 @@ public abstract class PegNodeVisitor {
 		PEGMAP.put("SpecialIdentifier", new Integer(SPECIALIDENTIFIER));
 	}
 	
+	/**
+	 * Returns the id of a grammar node name, or -1 if the
+	 * name is not one produced by Parser. This is a string
+	 * switch: cheaper than the PEGMAP lookup and unboxing, as
+	 * the interned name's hash is cached, but not an index.
+	 */
+	public static int nodeId(String name) {
+		switch (name) {
+			case "Grammar" :
+				return GRAMMAR;
+			case "Definition" :
+				return DEFINITION;
+			case "Expression" :
+				return EXPRESSION;
+			case "Sequence" :
+				return SEQUENCE;
+			case "Prefix" :
+				return PREFIX;
+			case "Suffix" :
+				return SUFFIX;
+			case "SuppressPrimary" :
+				return SUPPRESSPRIMARY;
+			case "Primary" :
+				return PRIMARY;
+			case "Identifier" :
+				return IDENTIFIER;
+			case "Literal" :
+				return LITERAL;
+			case "Class" :
+				return CLASS;
+			case "Range" :
+				return RANGE;
+			case "Char" :
+				return CHAR;
+			case "AND" :
+				return AND;
+			case "NOT" :
+				return NOT;
+			case "QUESTION" :
+				return QUESTION;
+			case "STAR" :
+				return STAR;
+			case "PLUS" :
+				return PLUS;
+			case "DOT" :
+				return DOT;
+			case "SUPPRESS" :
+				return SUPPRESS;
+			case "DEFSUPPRESS" :
+				return DEFSUPPRESS;
+			case "Term" :
+				return TERM;
+			case "Error" :
+				return ERROR;
+			case "BNFDefinition" :
+				return BNFDEFINITION;
+			case "SpecialIdentifier" :
+				return SPECIALIDENTIFIER;
+			case "Category" :
+				return CATEGORY;
+			case "NOCASE" :
+				return NOCASE;
+		}
+		return -1;
+	}
+	
 	public void visitChildren(Node p) {
 		for (Node child = p.child; child != null; child = child.next)
 			visit(child);
 	}
 	
 	public void visit(Node p) {
-		switch (((Integer) PEGMAP.get(p.name)).intValue()) {
+		switch (nodeId(p.name)) {
 			case GRAMMAR :
 				visitGrammar(p);
 				break;
@@ -118,6 +186,12 @@ public abstract class PegNodeVisitor {
 			case RANGE :
 				visitRange(p);
 				break;
+			case CATEGORY :
+				visitCategory(p);
+				break;
+			case NOCASE :
+				visitNOCASE(p);
+				break;
 			case CHAR :
 				visitChar(p);
 				break;
@@ -177,6 +251,10 @@ public abstract class PegNodeVisitor {
 	}
 	void visitRange(Node node) {
 	}
+	void visitCategory(Node node) {
+	}
+	void visitNOCASE(Node node) {
+	}
 	void visitChar(Node node) {
 	}
 	void visitAND(Node node) {
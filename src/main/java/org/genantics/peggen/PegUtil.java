@@ -20,6 +20,8 @@
  
 package org.genantics.peggen;
 
+import java.util.List;
+
 /**
  * @author Bob Foster
  */
@@ -40,15 +42,20 @@ public class PegUtil {
 	
 	// Char <- '\\' [nrt'"\[\]\\]
 	// / '\\' [0-9A-Fa-f][0-9A-Fa-f][0-9A-Fa-f][0-9A-Fa-f] # Added
+	// / '\\' 'u{' [0-9A-Fa-f]+ '}' # Added, at most 10FFFF
 	// / '\\' [0-2][0-7][0-7]
 	// / '\\' [0-7][0-7]?
 	// / !'\\' .
+	// A supplementary code point decodes to its high surrogate.
 	public static char decodeChar(String rep) {
 		char c = rep.charAt(0);
 		if (c != '\\') return c;
 		char x;
 		c = rep.charAt(1);
 		switch (c) {
+			case 'u':
+				x = Character.toChars(decodeCodePoint(rep))[0];
+				break;
 			case 'n':
 				x = '\n';
 				break;
@@ -94,5 +101,61 @@ public class PegUtil {
 		}
 		return x;
 	}
-}
 
+	/**
+	 * Decode a Char as a code point, which can only be supplementary
+	 * in the u{...} form.
+	 */
+	public static int decodeCodePoint(String rep) {
+		if (rep.startsWith("\\u{"))
+			return Integer.parseInt(rep.substring(3, rep.length()-1), 16);
+		return decodeChar(rep);
+	}
+
+	/**
+	 * The char that c and the chars equal to it ignoring case fold
+	 * to, as in String.equalsIgnoreCase.
+	 */
+	public static char foldCase(char c) {
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	/**
+	 * True if a Literal node is matched ignoring case, 'like'i.
+	 */
+	public static boolean isNoCase(Node literal) {
+		Node last = literal.child;
+		if (last == null)
+			return false;
+		while (last.next != null)
+			last = last.next;
+		return last.name == "NOCASE";
+	}
+
+	/**
+	 * Add an error message in the three-line form used by Parser:
+	 * message with line number, the line, and a caret under pos.
+	 */
+	public static void addError(List<String> errors, char[] in, int pos, String msg) {
+		pos = Math.max(0, Math.min(pos, in.length-1));
+		int line = 1;
+		for (int i = 0; i < pos; i++) {
+			char c = in[i];
+			if (c == '\n' || (c == '\r' && (i+1 == in.length || in[i+1] != '\n')))
+				line++;
+		}
+		int start = pos;
+		while (start > 0 && in[start-1] != '\r' && in[start-1] != '\n')
+			start--;
+		int end = pos;
+		while (end < in.length && in[end] != '\r' && in[end] != '\n')
+			end++;
+		StringBuilder caret = new StringBuilder();
+		for (int i = start; i < pos; i++)
+			caret.append(in[i] == '\t' ? '\t' : ' ');
+		caret.append('^');
+		errors.add(msg+" at line "+line+":");
+		errors.add(new String(in, start, end-start));
+		errors.add(caret.toString());
+	}
+}
@@ -13,7 +13,12 @@ package org.genantics.peggen;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
 
 /**
  * Generates a PEG parser in the style of Parser.
@@ -32,7 +37,9 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 	protected String rngresult;
 	protected String setresult;
 	protected String sresult;
+	protected boolean nocaseresult;
 	protected char cresult;
+	protected int cpresult;
 	protected int loc;
 	protected char[] in;
 	protected String startRule;
@@ -44,6 +51,53 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 	protected boolean suppressRule;
 	protected boolean append;
 	protected int count;
+	
+	protected boolean profile;
+	protected boolean jfrEvents;
+	protected boolean jfrRuleEvents;
+	protected int inlineBudget;
+	protected boolean prune;
+	protected boolean optimize;
+	protected boolean recognizers;
+	protected boolean recognizing;
+	protected HashSet<String> recRules = new HashSet<String>();
+	protected HashMap<String,String> chainTop = new HashMap<String,String>();
+	protected HashMap<String,ArrayList<String>> chainLevels = new HashMap<String,ArrayList<String>>();
+	protected HashSet<String> climbsGenerated = new HashSet<String>();
+	protected int methodLimit = DEFAULT_METHOD_LIMIT;
+	protected int maxDepth;
+	protected boolean limits;
+	protected int memo;
+	protected ArrayList<String> memoRules = new ArrayList<String>();
+	protected int memoEager;
+	protected ParseProfile profileData;
+	// choices whose alternatives can be put in any order, named
+	// rule.n, and the profile counter of each of their alternatives
+	protected ArrayList<Node> choiceNodes = new ArrayList<Node>();
+	protected ArrayList<String> choiceNames = new ArrayList<String>();
+	protected IdentityHashMap<Node,Integer> altCounters = new IdentityHashMap<Node,Integer>();
+	protected boolean positions;
+	protected boolean arena;
+	protected String tokens;
+	protected ArrayList<String> tokenRules = new ArrayList<String>();
+	protected boolean dfa;
+	protected HashMap<String,Dfa> dfaRules = new HashMap<String,Dfa>();
+	protected HashSet<String> posRules = new HashSet<String>();
+	protected HashSet<String> recursiveRules = new HashSet<String>();
+	protected HashSet<String> indentRules = new HashSet<String>();
+	protected boolean trackIndent;
+	protected int classLimit = DEFAULT_CLASS_LIMIT;
+	protected boolean shareMembers;
+	
+	/** Classes are limited to 65535 constant pool entries. */
+	public static final int DEFAULT_CLASS_LIMIT = 40000;
+	
+	/** HotSpot doesn't compile methods over 8000 bytes of bytecode. */
+	public static final int DEFAULT_METHOD_LIMIT = 8000;
+	
+	/** Largest automaton -dfa generates, in table cells. */
+	public static final int DFA_CELLS = 2048;
+	protected GrammarAnalyzer analyzer;
 
 	/**
 	 * Generate parser from parse tree and input text.
@@ -65,6 +119,22 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		indent = "";
 		loc = 0;
 		preprocess(grammar);
+		analyze(grammar);
+		if (profile || profileData != null)
+			findChoices(grammar);
+		if (profileData != null)
+			reorderChoices();
+		if (recognizers)
+			findRecognizedRules();
+		findIndentRules();
+		if (profileData != null)
+			findProfiledMemoRules();
+		if (optimize && !profile && !jfrRuleEvents)
+			findChains();
+		if (maxDepth > 0)
+			findRecursiveRules();
+		if (positions || tokens != null || dfa)
+			findPositionRules();
 		visit(grammar);
 	}
 	
@@ -108,9 +178,184 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 	void setVerbose(boolean verbose) {
 		this.verbose = verbose;
 	}
+	
+	/**
+	 * Instrument every rule method to count calls, successes, failures,
+	 * mini-packrat hits, characters consumed and time spent.
+	 * Generated parsers report the counts with getProfile().
+	 */
+	public void setProfile(boolean profile) {
+		this.profile = profile;
+	}
+	
+	/**
+	 * Emit a JDK Flight Recorder event for each parseLanguage call.
+	 */
+	public void setJfrEvents(boolean jfrEvents) {
+		this.jfrEvents = jfrEvents;
+	}
+	
+	/**
+	 * Emit a JDK Flight Recorder event for each rule invocation that
+	 * takes longer than the event threshold.
+	 */
+	public void setJfrRuleEvents(boolean jfrRuleEvents) {
+		this.jfrRuleEvents = jfrRuleEvents;
+	}
+	
+	/**
+	 * Inline suppressed, non-recursive rules whose bodies are no larger
+	 * than budget at their call sites. 0, the default, inlines nothing.
+	 * Ignored when profiling, which reports on the rules as written.
+	 */
+	public void setInline(int budget) {
+		this.inlineBudget = budget;
+	}
+	
+	/**
+	 * Generate only the rules called, directly or indirectly, from
+	 * the start rule.
+	 */
+	public void setPrune(boolean prune) {
+		this.prune = prune;
+	}
+	
+	/**
+	 * Leave out saves and restores of inpos and outpos that can't
+	 * matter and combine simple matches in sequences and alternatives
+	 * with && and ||.
+	 */
+	public void setOptimize(boolean optimize) {
+		this.optimize = optimize;
+	}
+	
+	/**
+	 * Generate node-free recognizers for the rules used in
+	 * predicates.
+	 */
+	public void setRecognizers(boolean recognizers) {
+		this.recognizers = recognizers;
+	}
+	
+	/**
+	 * Move parts of rule bodies into helper methods so no method
+	 * has more than about limit bytes of bytecode. 0 turns
+	 * splitting off.
+	 */
+	public void setMethodLimit(int limit) {
+		this.methodLimit = limit;
+	}
+	
+	/**
+	 * Spread rule methods over several classes so no class has
+	 * more than about limit constant pool entries. 0 puts all rules
+	 * in one class.
+	 */
+	public void setClassLimit(int limit) {
+		this.classLimit = limit;
+	}
+	
+	/**
+	 * Fail the parse with an error, instead of overflowing the
+	 * stack, when recursive rules nest more than depth deep.
+	 * 0 leaves nesting unchecked.
+	 */
+	public void setMaxDepth(int depth) {
+		this.maxDepth = depth;
+	}
+	
+	/**
+	 * Let generated parsers limit rule invocations, time and nodes,
+	 * and stop when their thread is interrupted, failing the parse
+	 * with an error.
+	 */
+	public void setLimits(boolean limits) {
+		this.limits = limits;
+	}
+	
+	/**
+	 * Memoize a rule for the rest of a parse once it has been tried
+	 * again at a position it was tried at threshold times.
+	 * 0 leaves only the one-slot memo of sameRule.
+	 */
+	public void setMemo(int threshold) {
+		this.memo = threshold;
+	}
+	
+	/**
+	 * Generate the parser to suit the counts of a profile, from a
+	 * parser of the same grammar generated with setProfile(true).
+	 * Alternatives that can be put in any order are tried most
+	 * frequent first, rules called often are inlined with a larger
+	 * budget and rules often tried again at a position are memoized.
+	 */
+	public void setProfileData(ParseProfile profile) {
+		this.profileData = profile;
+	}
+	
+	/** Inline budget of rules that take 1% or more of the calls in a profile. */
+	public static final int HOT_INLINE = 12;
+	
+	/**
+	 * Generate suppressed rules that only match characters as
+	 * methods that take the start position and return the end
+	 * position, or -1 if they don't match.
+	 */
+	public void setPositions(boolean positions) {
+		this.positions = positions;
+	}
+	
+	/**
+	 * Generate parsers that take nodes from an arena, refilled by
+	 * release(tree) and by the nodes each parse throws away.
+	 */
+	public void setArena(boolean arena) {
+		this.arena = arena;
+	}
+	
+	/**
+	 * Remember, for each position, where the token rules named in a
+	 * comma-separated list end, or if the list is empty the rules
+	 * with all-uppercase names. Only rules that match characters
+	 * without adding nodes below their own can be token rules.
+	 * null turns this off.
+	 */
+	public void setTokens(String tokens) {
+		this.tokens = tokens;
+	}
+	
+	/**
+	 * Match rules whose PEG meaning is regular with a table-driven
+	 * automaton, in place of their position method. Implies
+	 * setPositions.
+	 */
+	public void setDfa(boolean dfa) {
+		this.dfa = dfa;
+	}
   
   HashSet<String> allRules = new HashSet<String>();
   HashSet<String> BNFRules = new HashSet<String>();
+  ArrayList<String> ruleOrder = new ArrayList<String>();
+  ArrayList<String> treeRules = new ArrayList<String>();
+  HashMap<String,String> ruleIds = new HashMap<String,String>();
+  
+  /**
+   * Constants of the generated parser a rule id must not take,
+   * besides the CLASSn and SKIPn tables.
+   */
+  static final String[] RESERVED_IDS = {
+    "INITIAL_OUT_SIZE", "MAX_DEPTH", "LIMIT_INTERVAL", "TOKEN_RULES", "UNTRIED", "WS_CACHE",
+    "MEMO_THRESHOLD", "MEMO_EAGER", "MEMO_RULES", "MEMO_SEEN",
+    "PROFILE_RULES", "PROFILE_CHOICES", "PROFILE_ALTS",
+  };
+  
+  static boolean reservedId(String id) {
+    for (String reserved : RESERVED_IDS) {
+      if (reserved.equals(id))
+        return true;
+    }
+    return id.matches("(CLASS|SKIP)[0-9]+");
+  }
   
   /**
    * Preprocess Definition and BNFDefinition nodes and add them to the
@@ -128,15 +373,372 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
       Node ident = node.child;
       expect(ident, "Identifier");
 	  String name = PegUtil.strip(in, ident);
-      allRules.add(name);
+      if (allRules.add(name))
+        ruleOrder.add(name);
       if (node.name == "BNFDefinition")
         BNFRules.add(name);
+      if (!isSuppressed(node) && !ruleIds.containsKey(name)) {
+        treeRules.add(name);
+        String id = name.toUpperCase();
+        while (ruleIds.containsValue(id) || reservedId(id))
+          id += "_";
+        ruleIds.put(name, id);
+      }
     } else {
       for (Node child = node.child; child != null; child = child.next)
         preprocess(child);
     }
   }
 	
+	/**
+	 * True if a definition is marked ~ and so never appears in the tree.
+	 * Rules marked ~n may appear.
+	 */
+	boolean isSuppressed(Node defn) {
+		Node expr = defn.child.next;
+		if (expr == null || expr.name != "DEFSUPPRESS")
+			return false;
+		Node bodysuppress = expr.child.next;
+		return bodysuppress == null || bodysuppress.name == "SUPPRESS";
+	}
+	
+	HashSet<String> inlineRules = new HashSet<String>();
+	HashSet<String> calledRules;
+	HashSet<String> nodeRules = new HashSet<String>();
+	
+	/**
+	 * Find the rules that can add nodes to the tree, decide which
+	 * rules to inline and, if pruning, which rules to generate at all.
+	 */
+	void analyze(Node grammar) {
+		analyzer = new GrammarAnalyzer(grammar, in);
+		for (String rule : analyzer.getRuleNames()) {
+			if (!isSuppressed(analyzer.getDefinition(rule)))
+				nodeRules.add(rule);
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (String rule : analyzer.getRuleNames()) {
+				if (!nodeRules.contains(rule)) {
+					for (String ref : analyzer.getReferences(rule)) {
+						if (nodeRules.contains(ref)) {
+							changed = nodeRules.add(rule);
+							break;
+						}
+					}
+				}
+			}
+		}
+		if (inlineBudget <= 0 && profileData == null && !prune)
+			return;
+		if (startRule == null)
+			startRule = ruleOrder.get(0);
+		if ((inlineBudget > 0 || profileData != null) && !profile && !jfrRuleEvents) {
+			for (String rule : analyzer.getRuleNames()) {
+				Node defn = analyzer.getDefinition(rule);
+				// an inlined token rule would match without its table
+				if (isSuppressed(defn) && !rule.equals(startRule) && !rule.equals("WS")
+						&& !isTokenName(rule) && size(GrammarAnalyzer.body(defn)) <= inlineBudget(rule)) {
+					boolean recursive = false;
+					for (String ref : analyzer.getReferences(rule))
+						recursive |= analyzer.getReachable(ref).contains(rule);
+					if (!recursive)
+						inlineRules.add(rule);
+				}
+			}
+		}
+		if (prune) {
+			// rules whose methods are called, looking through inlined rules
+			calledRules = new HashSet<String>();
+			calledRules.add(startRule);
+			ArrayList<String> work = new ArrayList<String>();
+			work.add(startRule);
+			while (!work.isEmpty()) {
+				String rule = work.remove(work.size()-1);
+				for (String ref : analyzer.getReferences(rule)) {
+					if (inlineRules.contains(ref))
+						work.add(ref);
+					else if (calledRules.add(ref))
+						work.add(ref);
+				}
+			}
+			for (int i = treeRules.size()-1; i >= 0; i--) {
+				if (!calledRules.contains(treeRules.get(i)))
+					treeRules.remove(i);
+			}
+		}
+	}
+	
+	/**
+	 * The size up to which a rule is inlined, larger for rules
+	 * a profile shows are called often.
+	 */
+	int inlineBudget(String rule) {
+		if (profileData != null && profileData.getCalls(rule) * 100 >= profileData.getTotalCalls()
+				&& profileData.getCalls(rule) > 0)
+			return Math.max(inlineBudget, HOT_INLINE);
+		return inlineBudget;
+	}
+	
+	/**
+	 * Number the choices of each rule in grammar order, and find
+	 * those whose alternatives can be tried in any order: none
+	 * matches empty and no two can start with the same char, so
+	 * only one can match anywhere. Those are profiled and reordered.
+	 */
+	void findChoices(Node grammar) {
+		for (Node defn = grammar.child; defn != null; defn = defn.next) {
+			if (defn.name != "Definition" && defn.name != "BNFDefinition")
+				continue;
+			String rule = PegUtil.strip(in, defn.child);
+			findChoices(rule, GrammarAnalyzer.body(defn), GrammarAnalyzer.isBNF(defn), new int[1]);
+		}
+	}
+	
+	private void findChoices(String rule, Node expr, boolean bnf, int[] number) {
+		if (expr == null)
+			return;
+		if (expr.name == "Expression" && expr.child != null && expr.child.next != null) {
+			int n = number[0]++;
+			if (anyOrder(expr, bnf)) {
+				choiceNodes.add(expr);
+				choiceNames.add(rule + "." + n);
+				for (Node alt = expr.child; alt != null; alt = alt.next)
+					altCounters.put(alt, altCounters.size());
+			}
+		}
+		for (Node child = expr.child; child != null; child = child.next)
+			findChoices(rule, child, bnf, number);
+	}
+	
+	private boolean anyOrder(Node expr, boolean bnf) {
+		CharSet seen = CharSet.EMPTY;
+		for (Node alt = expr.child; alt != null; alt = alt.next) {
+			if (analyzer.isNullable(alt, bnf) || reachesError(alt))
+				return false;
+			CharSet first = analyzer.getFirst(alt, bnf);
+			if (seen.intersects(first))
+				return false;
+			seen = seen.union(first);
+		}
+		return true;
+	}
+	
+	/**
+	 * True if expr can call $Error, which reports an error even
+	 * where the alternative fails.
+	 */
+	private boolean reachesError(Node expr) {
+		if (expr.name == "Identifier" || expr.name == "SpecialIdentifier") {
+			String ref = PegUtil.strip(in, expr);
+			return ref.equals("$Error") || analyzer.getReachable(ref).contains("$Error");
+		}
+		for (Node child = expr.child; child != null; child = child.next) {
+			if (reachesError(child))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Put the alternatives of each choice that can be reordered in
+	 * order of how often the profile shows they match, ties in
+	 * grammar order.
+	 */
+	void reorderChoices() {
+		for (int i = 0; i < choiceNodes.size(); i++) {
+			String name = choiceNames.get(i);
+			int dot = name.lastIndexOf('.');
+			long[] counts = profileData.getAlternatives(name.substring(0, dot), Integer.parseInt(name.substring(dot+1)));
+			Node expr = choiceNodes.get(i);
+			ArrayList<Node> alts = children(expr);
+			if (counts == null || counts.length != alts.size())
+				continue;
+			ArrayList<Node> order = new ArrayList<Node>();
+			for (int j = 0; j < alts.size(); j++) {
+				int k = order.size();
+				while (k > 0 && counts[j] > counts[alts.indexOf(order.get(k-1))])
+					k--;
+				order.add(k, alts.get(j));
+			}
+			expr.child = order.get(0);
+			for (int j = 0; j < order.size(); j++)
+				order.get(j).next = j+1 < order.size() ? order.get(j+1) : null;
+		}
+	}
+	
+	/**
+	 * Node rules the profile shows are parsed again at a position
+	 * in at least one call in four, not counting memo hits, which
+	 * are memoized from the start of each parse.
+	 */
+	void findProfiledMemoRules() {
+		for (String rule : ruleOrder) {
+			Node defn = analyzer.getDefinition(rule);
+			if (defn == null || isSuppressed(defn) || indentRules.contains(rule)
+					|| calledRules != null && !calledRules.contains(rule))
+				continue;
+			long again = profileData.getRetries(rule) - profileData.getMemoHits(rule);
+			if (again >= 16 && again * 4 >= profileData.getCalls(rule))
+				memoRules.add(rule);
+		}
+		memoEager = memoRules.size();
+	}
+	
+	/**
+	 * True if the code for expr can set match false.
+	 */
+	boolean canFail(Node expr) {
+		if (expr == null)
+			return false;
+		switch (nodeId(expr.name)) {
+			case SUFFIX :
+				return expr.child.next.name == "PLUS" && canFail(expr.child);
+			case EXPRESSION :
+				for (Node alt = expr.child; alt != null; alt = alt.next) {
+					if (!canFail(alt))
+						return false;
+				}
+				return true;
+			case SEQUENCE :
+				for (Node elt = expr.child; elt != null; elt = elt.next) {
+					if (canFail(elt))
+						return true;
+				}
+				return false;
+			case TERM :
+			case SUPPRESSPRIMARY :
+				return canFail(expr.child);
+			case LITERAL :
+			case CLASS :
+				return expr.child != null;
+			case ERROR :
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * True if the code for expr can add nodes to out.
+	 */
+	boolean addsNodes(Node expr) {
+		if (expr == null || recognizing)
+			return false;
+		switch (nodeId(expr.name)) {
+			case IDENTIFIER :
+			case SPECIALIDENTIFIER :
+			{
+				String id = PegUtil.strip(in, expr);
+				if (analyzer == null)
+					return true;
+				return nodeRules.contains(id) || analyzer.callsWS(expr, inBNFRule) && nodeRules.contains("WS");
+			}
+			case LITERAL :
+			case CLASS :
+				return analyzer == null || analyzer.callsWS(expr, inBNFRule) && nodeRules.contains("WS");
+			case DOT :
+			case ERROR :
+				return false;
+			case PREFIX :
+			case SUPPRESSPRIMARY :
+				// remove what they add
+				return false;
+		}
+		for (Node child = expr.child; child != null; child = child.next) {
+			if (addsNodes(child))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * True if expr can fail with inpos not where it started.
+	 */
+	boolean movesOnFail(Node expr) {
+		if (expr == null)
+			return false;
+		switch (nodeId(expr.name)) {
+			case SUFFIX :
+				return expr.child.next.name == "PLUS" && movesOnFail(expr.child);
+			case EXPRESSION :
+			{
+				// earlier alternatives are restored before trying the next
+				Node last = expr.child;
+				while (last.next != null)
+					last = last.next;
+				return movesOnFail(last);
+			}
+			case SEQUENCE :
+			{
+				if (movesOnFail(expr.child))
+					return true;
+				boolean consumed = false;
+				for (Node elt = expr.child; elt != null; elt = elt.next) {
+					if (consumed && canFail(elt))
+						return true;
+					consumed |= elt.name != "Prefix";
+				}
+				return false;
+			}
+			case TERM :
+			case SUPPRESSPRIMARY :
+				return movesOnFail(expr.child);
+		}
+		// terminals don't move when they fail, rules and predicates
+		// put inpos back
+		return false;
+	}
+	
+	/**
+	 * True if expr can fail with nodes it added still in out.
+	 */
+	boolean leavesOnFail(Node expr) {
+		if (expr == null || recognizing)
+			return false;
+		switch (nodeId(expr.name)) {
+			case SUFFIX :
+				return expr.child.next.name == "PLUS" && leavesOnFail(expr.child);
+			case EXPRESSION :
+			{
+				Node last = expr.child;
+				while (last.next != null)
+					last = last.next;
+				return leavesOnFail(last);
+			}
+			case SEQUENCE :
+			{
+				if (leavesOnFail(expr.child))
+					return true;
+				boolean added = false;
+				for (Node elt = expr.child; elt != null; elt = elt.next) {
+					if (added && canFail(elt))
+						return true;
+					added |= addsNodes(elt);
+				}
+				return false;
+			}
+			case TERM :
+				return leavesOnFail(expr.child);
+		}
+		// SuppressPrimary always restores outpos, rules and
+		// predicates restore it on failure
+		return false;
+	}
+	
+	/**
+	 * Size of an expression for inlining, the number of nodes
+	 * not counting chars.
+	 */
+	int size(Node expr) {
+		if (expr == null)
+			return 0;
+		int n = expr.name == "Char" ? 0 : 1;
+		for (Node child = expr.child; child != null; child = child.next)
+			n += size(child);
+		return n;
+	}
+	
 	void collectClass(Node node) {
 		// Class <- '['~ (!']' Range)* ']'~ Spacing
 		StringBuffer rng = new StringBuffer();
@@ -162,6 +764,30 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 	}
 	
 	void visitClass(Node node) {
+		UnicodeClass unicode = analyzer.unicodeClass(node);
+		if (unicode != null) {
+			writer.print(indent);
+			writer.print("match = matchClass(");
+			writer.print(classTable(unicode));
+			writer.println(");");
+			if (inBNFRule)
+				callWS();
+			return;
+		}
+		if (node.child != null && isTableSet(analyzer.classSet(node))) {
+			writer.print(indent);
+			writer.print("match = inpos < inend && (");
+			writer.print(charTest(analyzer.classSet(node), "in[inpos]"));
+			writer.println(");");
+			writer.print(indent);
+			writer.println("if (match)");
+			writer.print(indent);
+			writer.print(tab);
+			writer.println("inpos++;");
+			if (inBNFRule)
+				callWS();
+			return;
+		}
 		collectClass(node);
 		boolean hasrng = rngresult.length() > 0;
 		boolean hasset = setresult.length() > 0;
@@ -214,17 +840,33 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		Node ident = node.child;
 		expect(ident, "Identifier");
 		String name = PegUtil.strip(in, ident);
+		if (calledRules != null && !calledRules.contains(name))
+			return;
     
     inBNFRule = node.name == "BNFDefinition";
 		
 		if (verbose) System.out.println(name+" <-");
 		
+		generatedRules.add(name);
+		memberIndent = indent;
+		ruleBase = "rule" + name;
+		helperCount = 0;
+		helpers.clear();
 		writer.println();
 		writer.print(indent);
 		writer.print("protected boolean rule");
 		writer.print(name);
+		if (profile || jfrRuleEvents || recursiveRules.contains(name)) {
+			generateRuleWrapper(name);
+			writer.print(indent);
+			writer.print("private boolean rule");
+			writer.print(name);
+			writer.print("$");
+		}
 		writer.print("(Node parent) ");
 		leftBrace();
+		if (limits)
+			generateLimitCheck();
 		
 		// body
     
@@ -236,6 +878,7 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		suppressRule = false;
 		count = -1;
 		loc = 0;
+		trackIndent = indentRules.contains(name);
 		if (expr != null && expr.name == "DEFSUPPRESS") {
 			// DEFSUPPRESS <- SUPPRESS (SUPPRESS / NUM)?
 			Node suppress = expr.child;
@@ -259,10 +902,55 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		// two styles of rule
 		// ??could be a third style for lexical-only rules
 		
-		if (suppressRule) {
+		if (posRules.contains(name) && suppressRule) {
+			generatePositionCall(name);
+		}
+		else if (suppressRule && optimize) {
+			if (expr != null) {
+				boolean restoreIn = movesOnFail(expr);
+				boolean restoreOut = leavesOnFail(expr);
+				if (restoreIn) {
+					writer.print(indent);
+					writer.println("int inmark = inpos;");
+					saveIndent("mark");
+				}
+				if (restoreOut) {
+					writer.print(indent);
+					writer.println("int outmark = outpos;");
+				}
+				writer.print(indent);
+				writer.println("boolean match = true;");
+			
+				visit(expr);
+
+				if (restoreIn || restoreOut) {
+					writer.print(indent);
+					writer.print("if (!match) ");
+					leftBrace();
+					if (restoreIn) {
+						writer.print(indent);
+						writer.println("inpos = inmark;");
+						restoreIndent("mark");
+					}
+					if (restoreOut) {
+						writer.print(indent);
+						writer.println("outpos = outmark;");
+					}
+					rightBrace();
+				}
+				writer.print(indent);
+				writer.println("return match;");
+			}
+			else {
+				writer.print(indent);
+				writer.println("return true;");
+			}
+		}
+		else if (suppressRule) {
 			if (expr != null) {
 				writer.print(indent);
 				writer.println("int inmark = inpos;");
+				saveIndent("mark");
 				writer.print(indent);
 				writer.println("int outmark = outpos;");
 				writer.print(indent);
@@ -275,6 +963,7 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 				leftBrace();
 				writer.print(indent);
 				writer.println("inpos = inmark;");
+				restoreIndent("mark");
 				writer.print(indent);
 				writer.println("outpos = outmark;");
 				writer.print(indent);
@@ -286,25 +975,80 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 			
 		}
 		else {
+			int memoId = -1;
+			if ((memo > 0 || memoRules.contains(name)) && !trackIndent) {
+				if (!memoRules.contains(name))
+					memoRules.add(name);
+				memoId = memoRules.indexOf(name);
+			}
 			writer.print(indent);
 			writer.println("int outstart = outpos;");
 			writer.print(indent);
-			writer.print("if (sameRule(\"");
+			if (memoId >= 0) {
+				writer.print("if (sameMemo(");
+				writer.print(memoId);
+				writer.print(", \"");
+			}
+			else
+				writer.print(trackIndent ? "if (sameIndent(\"" : "if (sameRule(\"");
 			writer.print(name);
-			writer.println("\")) return out[outstart].success;");
+			if (profile) {
+				writer.print("\", parent)) ");
+				leftBrace();
+				writer.print(indent);
+				writer.print("profMemoHits[");
+				writer.print(ruleOrder.indexOf(name));
+				writer.println("]++;");
+				writer.print(indent);
+				writer.println("return out[outstart].success;");
+				rightBrace();
+			}
+			else
+				writer.println("\", parent)) return out[outstart].success;");
 			writer.print(indent);
-			writer.print("Node rule = new Node(\"");
+			writer.print(trackIndent ? "Node rule = attemptIndent(\"" : "Node rule = attempt(\"");
 			writer.print(name);
-			writer.println("\", parent, inpos);");
-			writer.print(indent);
-			writer.println("out[outpos++] = rule;");
+			writer.println("\", parent);");
 			writer.println();
 			if (count >= 0) {
 				writer.print(indent);
 				writer.println("int count = 0;");
 			}
 			
-			if (expr != null) {
+			if (posRules.contains(name)) {
+				generatePositionEnd(name);
+				writer.print(indent);
+				writer.println("if (end < 0)");
+				writer.print(indent);
+				writer.print(tab);
+				writer.println(failRule(memoId));
+				writer.print(indent);
+				writer.println("inpos = end;");
+			}
+			else if (expr != null && chainTop.containsKey(name)) {
+				writer.print(indent);
+				writer.println("boolean match = true;");
+				generateLevel(name);
+				writer.print(indent);
+				writer.println("if (!match)");
+				writer.print(indent);
+				writer.print(tab);
+				writer.println(failRule(memoId));
+			}
+			else if (expr != null && optimize) {
+				// fail() restores inpos and outpos
+				writer.print(indent);
+				writer.println("boolean match = true;");
+			
+				visit(expr);
+
+				writer.print(indent);
+				writer.println("if (!match)");
+				writer.print(indent);
+				writer.print(tab);
+				writer.println(failRule(memoId));
+			}
+			else if (expr != null) {
 				writer.print(indent);
 				writer.println("int inmark = inpos;");
 				writer.print(indent);
@@ -322,7 +1066,7 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 				writer.print(indent);
 				writer.println("outpos = outmark;");
 				writer.print(indent);
-				writer.println("return fail(rule, outstart);");
+				writer.println(failRule(memoId));
 				rightBrace();
 			}
 			
@@ -333,76 +1077,1599 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 				writer.println(";");
 			}
 			writer.print(indent);
-			writer.println("return succeed(rule);");
+			if (memoId >= 0) {
+				writer.print("return succeedMemo(");
+				writer.print(memoId);
+				writer.println(", rule, outstart);");
+			}
+			else
+				writer.println(trackIndent ? "return succeedIndent(rule, outstart);" : "return succeed(rule);");
 		}
 		
 		rightBrace();
+		for (String helper : helpers)
+			writer.print(helper);
+		ruleBase = null;
+		
+		String top = chainTop.get(name);
+		if (top != null && climbsGenerated.add(top))
+			generateClimb(top);
+		if (hasRecognizer(name))
+			generateRecognizer(name, expr);
+		if (posRules.contains(name))
+			generatePositionRule(name, expr);
+		trackIndent = false;
 	}
 	
-	protected void expectNonNull(Node expr, String string) {
-		if (expr == null) throw new IllegalArgumentException("Found null, expecting "+string);
-	}
-
-	protected void leftBrace() {
-		writer.println("{");
-		indentIn();
+	/**
+	 * The statement that ends a failed node rule, memoized if
+	 * memoId is not -1.
+	 */
+	protected String failRule(int memoId) {
+		if (memoId >= 0)
+			return "return failMemo(" + memoId + ", rule, outstart);";
+		return trackIndent ? "return failIndent(rule, outstart);" : "return fail(rule, outstart);";
 	}
 	
-	protected void rightBrace() {
-		indentOut();
-		writer.print(indent);
-		writer.println("}");
-	}
-
-	protected void rightBraceNoLn() {
-		indentOut();
-		writer.print(indent);
-		writer.print("}");
+	/**
+	 * The ~n of a definition, or -1.
+	 */
+	int levelCount(Node defn) {
+		Node expr = defn.child.next;
+		if (expr == null || expr.name != "DEFSUPPRESS")
+			return -1;
+		Node num = expr.child.next;
+		if (num == null || num.name == "SUPPRESS")
+			return -1;
+		return Integer.parseInt(PegUtil.strip(in, num));
 	}
-
-	void visitDEFSUPPRESS(Node node) {
-		// DEFSUPPRESS <- SUPPRESS (SUPPRESS / [1-9][0-9]*)?
+	
+	/**
+	 * For a precedence level, a rule of the form L~n <- N (Op N)*
+	 * or, right associative, L~n <- N (Op L)*, with n at least 2,
+	 * the nodes N, the first element of Op and the last operand.
+	 * Otherwise null.
+	 */
+	Node[] levelParts(String rule) {
+		Node defn = analyzer.getDefinition(rule);
+		if (defn == null || levelCount(defn) < 2)
+			return null;
+		Node body = GrammarAnalyzer.body(defn);
+		if (body == null || body.name != "Sequence")
+			return null;
+		Node first = body.child;
+		Node star = first.next;
+		if (first.name != "Identifier" || star.next != null
+				|| star.name != "Suffix" || star.child.next.name != "STAR")
+			return null;
+		Node term = star.child;
+		if (term.name != "Term" || term.child == null || term.child.name != "Sequence")
+			return null;
+		Node op = term.child.child;
+		Node operand = op;
+		while (operand.next != null)
+			operand = operand.next;
+		if (operand.name != "Identifier")
+			return null;
+		String next = PegUtil.strip(in, first);
+		String last = PegUtil.strip(in, operand);
+		if (!last.equals(next) && !last.equals(rule))
+			return null;
+		return new Node[] {first, op, operand};
 	}
 	
-	void visitDOT(Node node) {
-		// DOT <- '.'~ Spacing~
-		writer.print(indent);
+	/**
+	 * Find chains of precedence levels, like Sum~2 <- Prod (ADD Prod)*,
+	 * Prod~2 <- Power (MUL Power)*, ... Each chain is parsed by one
+	 * precedence climbing method, which only creates the node of a
+	 * level when it finds one of its operators.
+	 */
+	void findChains() {
+		ArrayList<String> levels = new ArrayList<String>();
+		HashMap<String,String> inner = new HashMap<String,String>();
+		for (String rule : ruleOrder) {
+			Node[] parts = levelParts(rule);
+			// climbing makes level nodes that don't record the indentation
+			if (parts == null || indentRules.contains(rule))
+				continue;
+			levels.add(rule);
+			String next = PegUtil.strip(in, parts[0]);
+			if (levelParts(next) != null
+					&& analyzer.getDefinition(next).name == analyzer.getDefinition(rule).name)
+				inner.put(rule, next);
+		}
+		for (String rule : levels) {
+			if (inner.containsValue(rule))
+				continue;
+			ArrayList<String> chain = new ArrayList<String>();
+			boolean right = false;
+			for (String level = rule; level != null; level = inner.get(level)) {
+				chain.add(level);
+				right |= PegUtil.strip(in, levelParts(level)[2]).equals(level);
+			}
+			if (chain.size() < 2 && !right)
+				continue;
+			chainLevels.put(rule, chain);
+			for (String level : chain) {
+				if (!chainTop.containsKey(level))
+					chainTop.put(level, rule);
+			}
+		}
+	}
+	
+	/**
+	 * Generate the body of a level rule, which has its own node,
+	 * with its operands parsed by the chain's climbing method.
+	 */
+	protected void generateLevel(String name) {
+		String top = chainTop.get(name);
+		ArrayList<String> levels = chainLevels.get(top);
+		int level = levels.indexOf(name);
+		if (level + 1 < levels.size())
+			generateClimbCall(top, level + 1);
+		else
+			visit(levelParts(name)[0]);
+		writer.print(indent);
+		writer.print("if (match) ");
+		leftBrace();
+		writer.print(indent);
+		writer.print("do ");
+		leftBrace();
+		generateLevelIteration(top, level, false);
+		rightBraceNoLn();
+		writer.println(" while(match);");
+		writer.print(indent);
+		writer.println("match = true;");
+		rightBrace();
+	}
+	
+	/**
+	 * Generate one Op N iteration of a level. If wrap is true, the
+	 * level's node is created after the first one that matches.
+	 */
+	protected void generateLevelIteration(String top, int level, boolean wrap) {
+		ArrayList<String> levels = chainLevels.get(top);
+		String name = levels.get(level);
+		Node[] parts = levelParts(name);
+		int mark = ++loc;
+		save(mark);
+		writer.print(indent);
+		writer.print("int markCount");
+		writer.print(mark);
+		writer.println(" = count;");
+		ArrayList<Node> ops = new ArrayList<Node>();
+		for (Node op = parts[1]; op != parts[2]; op = op.next)
+			ops.add(op);
+		if (ops.size() == 1)
+			visit(ops.get(0));
+		else if (optimize)
+			generateSequence(ops);
+		else
+			generatePlainSequence(ops);
+		writer.print(indent);
+		writer.print("if (match) ");
+		leftBrace();
+		if (PegUtil.strip(in, parts[2]).equals(name))
+			generateClimbCall(top, level);
+		else if (level + 1 < levels.size())
+			generateClimbCall(top, level + 1);
+		else
+			visit(parts[2]);
+		rightBrace();
+		writer.print(indent);
+		writer.print("if (!match) ");
+		leftBrace();
+		restore(mark);
+		writer.print(indent);
+		writer.print("count = markCount");
+		writer.print(mark);
+		writer.println(";");
+		rightBrace();
+		if (wrap) {
+			writer.print(indent);
+			writer.print("else if (node == null) ");
+			leftBrace();
+			writer.print(indent);
+			writer.print("node = wrap(\"");
+			writer.print(name);
+			writer.println("\", parent, start, outstart);");
+			writer.print(indent);
+			writer.println("rule = node;");
+			rightBrace();
+		}
+	}
+	
+	protected void generateClimbCall(String top, int level) {
+		writer.print(indent);
+		writer.print("match = climb");
+		writer.print(top);
+		writer.print("(rule, ");
+		writer.print(level);
+		writer.println(");");
+		writer.print(indent);
+		writer.println("if (match) count++;");
+	}
+	
+	/**
+	 * Generate the precedence climbing method of a chain. It parses
+	 * the operand of the innermost level, then the operators of each
+	 * level from level outwards, exactly as the nested rules would.
+	 */
+	protected void generateClimb(String top) {
+		ArrayList<String> levels = chainLevels.get(top);
+		String innermost = levels.get(levels.size()-1);
+		Node primary = levelParts(innermost)[0];
+		boolean saveBNF = inBNFRule;
+		inBNFRule = analyzer.getDefinition(top).name == "BNFDefinition";
+		loc = 0;
+		writer.println();
+		writer.print(indent);
+		writer.print("protected boolean climb");
+		writer.print(top);
+		writer.print("(Node parent, int level) ");
+		leftBrace();
+		if (limits)
+			generateLimitCheck();
+		if (maxDepth > 0)
+			generateDepthCheck();
+		writer.print(indent);
+		writer.println("int start = inpos;");
+		writer.print(indent);
+		writer.println("int outstart = outpos;");
+		writer.print(indent);
+		writer.println("Node rule = parent;");
+		writer.print(indent);
+		writer.println("boolean match = true;");
+		count = -1;
+		visit(primary);
+		writer.print(indent);
+		if (maxDepth > 0) {
+			writer.print("if (!match) ");
+			leftBrace();
+			writer.print(indent);
+			writer.println("depth--;");
+			writer.print(indent);
+		}
+		else {
+			writer.println("if (!match)");
+			writer.print(indent);
+			writer.print(tab);
+		}
+		writer.println("return failAt(start);");
+		if (maxDepth > 0)
+			rightBrace();
+		writer.print(indent);
+		writer.println("int count;");
+		writer.print(indent);
+		writer.println("Node node;");
+		for (int level = levels.size()-1; level >= 0; level--) {
+			String name = levels.get(level);
+			count = levelCount(analyzer.getDefinition(name));
+			writer.print(indent);
+			writer.print("if (level <= ");
+			writer.print(level);
+			writer.print(") ");
+			leftBrace();
+			writer.print(indent);
+			writer.print("// ");
+			writer.println(name);
+			writer.print(indent);
+			writer.println("count = 1;");
+			writer.print(indent);
+			writer.println("node = null;");
+			writer.print(indent);
+			writer.print("do ");
+			leftBrace();
+			generateLevelIteration(top, level, true);
+			rightBraceNoLn();
+			writer.println(" while(match);");
+			writer.print(indent);
+			writer.print("if (node != null) ");
+			leftBrace();
+			writer.print(indent);
+			writer.print("node.remove = count < ");
+			writer.print(count);
+			writer.println(";");
+			writer.print(indent);
+			writer.println("succeed(node);");
+			writer.print(indent);
+			writer.println("rule = parent;");
+			rightBrace();
+			writer.print(indent);
+			writer.println("else");
+			writer.print(indent);
+			writer.print(tab);
+			writer.println("succeedAt(start);");
+			rightBrace();
+		}
+		if (maxDepth > 0) {
+			writer.print(indent);
+			writer.println("depth--;");
+		}
+		writer.print(indent);
+		writer.println("return true;");
+		rightBrace();
+		count = -1;
+		inBNFRule = saveBNF;
+	}
+	
+	/**
+	 * Generate recName(), which matches the same input as ruleName
+	 * without adding nodes. Predicates call these.
+	 */
+	protected void generateRecognizer(String name, Node expr) {
+		writer.println();
+		writer.print(indent);
+		writer.print("protected boolean rec");
+		writer.print(name);
+		writer.print("() ");
+		leftBrace();
+		if (posRules.contains(name)) {
+			// position methods other than automata check the limits
+			if (limits && dfaRules.containsKey(name))
+				generateLimitCheck();
+			generatePositionCall(name);
+			rightBrace();
+			return;
+		}
+		if (limits)
+			generateLimitCheck();
+		boolean countDepth = recursiveRules.contains(name);
+		if (countDepth)
+			generateDepthCheck();
+		writer.print(indent);
+		writer.println("int start = inpos;");
+		saveIndent("start");
+		writer.print(indent);
+		writer.println("boolean match = true;");
+		loc = 0;
+		count = -1;
+		recognizing = true;
+		if (expr != null)
+			visit(expr);
+		recognizing = false;
+		if (countDepth) {
+			writer.print(indent);
+			writer.println("depth--;");
+		}
+		if (suppressRule && !trackIndent) {
+			writer.print(indent);
+			writer.println("if (!match)");
+			writer.print(indent);
+			writer.print(tab);
+			writer.println("inpos = start;");
+			writer.print(indent);
+			writer.println("return match;");
+		}
+		else if (suppressRule) {
+			writer.print(indent);
+			writer.print("if (!match) ");
+			leftBrace();
+			writer.print(indent);
+			writer.println("inpos = start;");
+			restoreIndent("start");
+			rightBrace();
+			writer.print(indent);
+			writer.println("return match;");
+		}
+		else {
+			writer.print(indent);
+			writer.print("if (!match) ");
+			leftBrace();
+			writer.print(indent);
+			writer.println("inpos = start;");
+			restoreIndent("start");
+			writer.print(indent);
+			writer.println("return failAt(start);");
+			rightBrace();
+			writer.print(indent);
+			writer.println("return succeedAt(start);");
+		}
+		rightBrace();
+	}
+	
+	/**
+	 * Suppressed rules made only of chars, and of calls of other
+	 * such rules, get a position method. Recursive rules don't, so
+	 * the depth limit sees all recursion, nor do rules too big for
+	 * one method. Token rules and, with -dfa, rules an automaton can
+	 * match get one too, though they may have a node of their own,
+	 * and so are only called from rule methods.
+	 */
+	void findPositionRules() {
+		for (String rule : analyzer.getRuleNames()) {
+			Node defn = analyzer.getDefinition(rule);
+			Node body = GrammarAnalyzer.body(defn);
+			boolean own = levelCount(defn) < 0 && (dfa || isTokenName(rule));
+			if (defn.name == "Definition" && (isSuppressed(defn) || own) && body != null && positional(body)
+					&& (methodLimit <= 0 || size(body) * 40 <= methodLimit))
+				posRules.add(rule);
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Iterator<String> it = posRules.iterator(); it.hasNext(); ) {
+				String rule = it.next();
+				for (String ref : analyzer.getReferences(rule)) {
+					if (!posRules.contains(ref) || !isSuppressed(analyzer.getDefinition(ref))
+							|| analyzer.getReachable(ref).contains(rule)) {
+						it.remove();
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+		if (dfa) {
+			for (Iterator<String> it = posRules.iterator(); it.hasNext(); ) {
+				String rule = it.next();
+				Node defn = analyzer.getDefinition(rule);
+				Dfa.Expr e = regular(GrammarAnalyzer.body(defn));
+				Dfa automaton = e != null && e.repeats() ? Dfa.build(e, DFA_CELLS) : null;
+				if (automaton != null)
+					dfaRules.put(rule, automaton);
+				else if (!isSuppressed(defn) && !isTokenName(rule))
+					it.remove();
+			}
+		}
+		// suppressed rules named only by case are usually a char or
+		// two, cheaper to match again than to look up
+		for (String rule : ruleOrder) {
+			if (isTokenName(rule) && posRules.contains(rule)
+					&& (tokens.length() > 0 || !isSuppressed(analyzer.getDefinition(rule))))
+				tokenRules.add(rule);
+		}
+	}
+	
+	/**
+	 * True if rule is named as a token rule, whether or not it
+	 * can be one.
+	 */
+	boolean isTokenName(String rule) {
+		if (tokens == null)
+			return false;
+		if (tokens.length() == 0)
+			return rule.equals(rule.toUpperCase()) && !rule.equals(rule.toLowerCase());
+		for (String name : tokens.split(",")) {
+			if (name.trim().equals(rule))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * e as an expression for Dfa, or null if it has predicates
+	 * other than (!X .) or calls rules that aren't position rules.
+	 */
+	Dfa.Expr regular(Node e) {
+		CharSet set = scanSet(e);
+		if (set != null)
+			return Dfa.chars(set);
+		String name = e.name;
+		if (name == "Expression") {
+			Dfa.Expr r = regular(e.child);
+			for (Node alt = e.child.next; alt != null; alt = alt.next)
+				r = Dfa.alt(r, regular(alt));
+			return r;
+		}
+		if (name == "Sequence") {
+			Dfa.Expr r = Dfa.EMPTY;
+			for (Node elt = e.child; elt != null; elt = elt.next)
+				r = Dfa.seq(r, regular(elt));
+			return r;
+		}
+		if (name == "Suffix") {
+			Node sp = e.child;
+			String post = sp.next.name;
+			if (post == "QUESTION")
+				return Dfa.opt(regular(sp));
+			if (post == "STAR")
+				return Dfa.star(regular(sp));
+			return Dfa.plus(regular(sp));
+		}
+		if (name == "SuppressPrimary")
+			return regular(e.child);
+		if (name == "Term")
+			return e.child == null ? Dfa.EMPTY : regular(e.child);
+		if (name == "Identifier") {
+			String id = PegUtil.strip(in, e);
+			Node defn = analyzer.getDefinition(id);
+			if (!posRules.contains(id) || !isSuppressed(defn))
+				return null;
+			return regular(GrammarAnalyzer.body(defn));
+		}
+		if (name == "Literal") {
+			collectLiteral(e);
+			String lit = sresult;
+			Dfa.Expr r = Dfa.EMPTY;
+			for (int i = 0; i < lit.length(); i++) {
+				char c = lit.charAt(i);
+				r = Dfa.seq(r, Dfa.chars(nocaseresult ? CharSet.ofIgnoreCase(c) : CharSet.of(c)));
+			}
+			return r;
+		}
+		if (name == "Class" && e.child == null)
+			return Dfa.chars(CharSet.EMPTY);
+		return null;
+	}
+	
+	/**
+	 * True if e has only the forms generatePosition handles.
+	 */
+	boolean positional(Node e) {
+		String name = e.name;
+		if (name == "Identifier" || name == "Literal" || name == "Class" || name == "DOT"
+				|| name == "AND" || name == "NOT" || name == "QUESTION" || name == "STAR"
+				|| name == "PLUS" || name == "SUPPRESS")
+			return true;
+		if (name != "Expression" && name != "Sequence" && name != "Prefix"
+				&& name != "Suffix" && name != "SuppressPrimary" && name != "Term")
+			return false;
+		for (Node child = e.child; child != null; child = child.next) {
+			if (!positional(child))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Generate the body of the rule method of a position rule.
+	 */
+	protected void generatePositionCall(String name) {
+		generatePositionEnd(name);
+		writer.print(indent);
+		writer.println("if (end < 0)");
+		writer.print(indent);
+		writer.print(tab);
+		writer.println("return false;");
+		writer.print(indent);
+		writer.println("inpos = end;");
+		writer.print(indent);
+		writer.println("return true;");
+	}
+	
+	/**
+	 * Generate code that sets end to where a position rule matches
+	 * from inpos, or -1.
+	 */
+	protected void generatePositionEnd(String name) {
+		if (tokenRules.contains(name))
+			generateTokenEnd(name);
+		else {
+			writer.print(indent);
+			writer.print("int end = pos");
+			writer.print(name);
+			writer.println("(inpos);");
+		}
+	}
+	
+	/**
+	 * Generate code that sets end to where a token rule matches
+	 * from inpos, or -1, calling its position method only the first
+	 * time the rule is tried at inpos.
+	 */
+	protected void generateTokenEnd(String name) {
+		int kind = tokenRules.indexOf(name);
+		writer.print(indent);
+		writer.print("int end = tokenEnd(");
+		writer.print(kind);
+		writer.println(");");
+		writer.print(indent);
+		writer.println("if (end == UNTRIED)");
+		writer.print(indent);
+		writer.print(tab);
+		writer.print("end = setTokenEnd(");
+		writer.print(kind);
+		writer.print(", pos");
+		writer.print(name);
+		writer.println("(inpos));");
+	}
+	
+	/**
+	 * Generate posName(p), which matches like ruleName from p and
+	 * returns the end position or -1. The position is a local and
+	 * the input is copied to locals, so the code needs no field
+	 * accesses or save/restore of inpos.
+	 */
+	protected void generatePositionRule(String name, Node expr) {
+		Dfa automaton = dfaRules.get(name);
+		if (automaton != null) {
+			generateDfaRule(name, automaton);
+			return;
+		}
+		writer.println();
+		writer.print(indent);
+		writer.print("protected int pos");
+		writer.print(name);
+		writer.print("(int p) ");
+		leftBrace();
+		if (limits)
+			generateLimitCheck();
+		writer.print(indent);
+		writer.println("char[] in = this.in;");
+		writer.print(indent);
+		writer.println("int inend = this.inend;");
+		loc = 0;
+		generatePosition(expr);
+		writer.print(indent);
+		writer.println("return p;");
+		rightBrace();
+	}
+	
+	/**
+	 * Generate the position method of a rule matched by an automaton,
+	 * and its table. The table has the class of each ASCII char, then
+	 * a row for each state with, for each class, the offset of the
+	 * row of the next state, or 0 to stop. States from the first
+	 * accepting one on accept.
+	 */
+	protected void generateDfaRule(String name, Dfa automaton) {
+		int classes = automaton.classCount();
+		writer.println();
+		writer.print(indent);
+		writer.print("protected int pos");
+		writer.print(name);
+		writer.print("(int p) ");
+		leftBrace();
+		writer.print(indent);
+		writer.println("char[] in = this.in;");
+		writer.print(indent);
+		writer.println("int inend = this.inend;");
+		writer.print(indent);
+		writer.print("char[] dfa = dfa");
+		writer.print(name);
+		writer.println(";");
+		writer.print(indent);
+		writer.println(automaton.start() >= automaton.firstAccepting() ? "int end = p;" : "int end = -1;");
+		writer.print(indent);
+		writer.print("int s = ");
+		writer.print(128 + automaton.start() * classes);
+		writer.println(";");
+		writer.print(indent);
+		writer.print("while (p < inend) ");
+		leftBrace();
+		writer.print(indent);
+		writer.println("char c = in[p];");
+		writer.print(indent);
+		writer.print("s = dfa[s + (c < 128 ? dfa[c] : ");
+		writer.print(highClass(automaton));
+		writer.println(")];");
+		writer.print(indent);
+		writer.println("if (s == 0)");
+		writer.print(indent);
+		writer.print(tab);
+		writer.println("break;");
+		writer.print(indent);
+		writer.println("p++;");
+		writer.print(indent);
+		writer.print("if (s >= ");
+		writer.print(128 + automaton.firstAccepting() * classes);
+		writer.println(")");
+		writer.print(indent);
+		writer.print(tab);
+		writer.println("end = p;");
+		rightBrace();
+		writer.print(indent);
+		writer.println("return end;");
+		rightBrace();
+		
+		int[] table = new int[128 + automaton.stateCount() * classes];
+		for (char c = 0; c < 128; c++)
+			table[c] = automaton.classOf(c);
+		for (int s = 0; s < automaton.stateCount(); s++) {
+			for (int k = 0; k < classes; k++) {
+				int next = automaton.next(s, k);
+				table[128 + s * classes + k] = next < 0 ? 0 : 128 + next * classes;
+			}
+		}
+		writer.println();
+		writer.print(indent);
+		writer.print("private static final char[] dfa");
+		writer.print(name);
+		writer.println(" = (");
+		for (int i = 0; i < table.length; i += 16) {
+			writer.print(indent);
+			writer.print(tab);
+			writer.print("\"");
+			for (int j = i; j < i + 16 && j < table.length; j++)
+				writer.print(tableChar(table[j]));
+			writer.println(i + 16 < table.length ? "\" +" : "\").toCharArray();");
+		}
+	}
+	
+	/**
+	 * Java expression for the class of a char c of 128 or more.
+	 */
+	protected String highClass(Dfa automaton) {
+		CharSet high = CharSet.range((char) 128, Character.MAX_VALUE);
+		String expr = null;
+		for (int k = automaton.classCount() - 1; k >= 0; k--) {
+			CharSet set = automaton.classSet(k).intersection(high);
+			if (set.isEmpty())
+				continue;
+			if (expr == null)
+				expr = Integer.toString(k);
+			else
+				expr = "(" + charTest(set, "c") + ") ? " + k + " : " + expr;
+		}
+		return expr;
+	}
+	
+	/**
+	 * A table entry as it appears in a string literal.
+	 */
+	protected String tableChar(int v) {
+		if (v >= ' ' && v <= '~' && v != '"' && v != '\\')
+			return String.valueOf((char) v);
+		if (v < 256)
+			return "\\" + (char) ('0' + (v >> 6)) + (char) ('0' + (v >> 3 & 7)) + (char) ('0' + (v & 7));
+		return String.format("\\u%04x", v);
+	}
+	
+	/**
+	 * Generate code that matches e at p, leaving p at the end of
+	 * the match or -1. p is never -1 on entry.
+	 */
+	protected void generatePosition(Node e) {
+		if (e.name == "Expression") {
+			int mark = ++loc;
+			writer.print(indent);
+			writer.print("int mark");
+			writer.print(mark);
+			writer.println(" = p;");
+			boolean first = true;
+			for (Node alt = e.child; alt != null; alt = alt.next) {
+				if (first) {
+					first = false;
+					generatePosition(alt);
+				}
+				else {
+					writer.print(indent);
+					writer.print("if (p < 0) ");
+					leftBrace();
+					writer.print(indent);
+					writer.print("p = mark");
+					writer.print(mark);
+					writer.println(";");
+					generatePosition(alt);
+					rightBrace();
+				}
+			}
+		}
+		else if (e.name == "Sequence") {
+			generatePosition(e.child);
+			for (Node elt = e.child.next; elt != null; elt = elt.next) {
+				writer.print(indent);
+				writer.print("if (p >= 0) ");
+				leftBrace();
+				generatePosition(elt);
+				rightBrace();
+			}
+		}
+		else if (e.name == "Prefix") {
+			boolean not = e.child.name == "NOT";
+			int mark = ++loc;
+			writer.print(indent);
+			writer.print("int mark");
+			writer.print(mark);
+			writer.println(" = p;");
+			generatePosition(e.child.next);
+			writer.print(indent);
+			if (not) {
+				writer.print("p = p < 0 ? mark");
+				writer.print(mark);
+				writer.println(" : -1;");
+			}
+			else {
+				writer.println("if (p >= 0)");
+				writer.print(indent);
+				writer.print(tab);
+				writer.print("p = mark");
+				writer.print(mark);
+				writer.println(";");
+			}
+		}
+		else if (e.name == "Suffix") {
+			Node sp = e.child;
+			String post = sp.next.name;
+			if (post == "QUESTION") {
+				int mark = ++loc;
+				writer.print(indent);
+				writer.print("int mark");
+				writer.print(mark);
+				writer.println(" = p;");
+				generatePosition(sp);
+				writer.print(indent);
+				writer.println("if (p < 0)");
+				writer.print(indent);
+				writer.print(tab);
+				writer.print("p = mark");
+				writer.print(mark);
+				writer.println(";");
+			}
+			else if (!generatePositionScan(sp, post == "PLUS")) {
+				if (post == "PLUS") {
+					generatePosition(sp);
+					writer.print(indent);
+					writer.print("if (p >= 0) ");
+					leftBrace();
+				}
+				int mark = ++loc;
+				writer.print(indent);
+				writer.print("int mark");
+				writer.print(mark);
+				writer.println(";");
+				writer.print(indent);
+				writer.print("do ");
+				leftBrace();
+				writer.print(indent);
+				writer.print("mark");
+				writer.print(mark);
+				writer.println(" = p;");
+				generatePosition(sp);
+				rightBraceNoLn();
+				writer.println(" while (p >= 0);");
+				writer.print(indent);
+				writer.print("p = mark");
+				writer.print(mark);
+				writer.println(";");
+				if (post == "PLUS")
+					rightBrace();
+			}
+		}
+		else if (e.name == "SuppressPrimary") {
+			generatePosition(e.child);
+		}
+		else if (e.name == "Term") {
+			if (e.child != null)
+				generatePosition(e.child);
+		}
+		else if (e.name == "Identifier") {
+			String id = PegUtil.strip(in, e);
+			if (inlineRules.contains(id)) {
+				writer.print(indent);
+				writer.print("// ");
+				writer.println(id);
+				generatePosition(GrammarAnalyzer.body(analyzer.getDefinition(id)));
+			}
+			else {
+				writer.print(indent);
+				writer.print("p = pos");
+				writer.print(id);
+				writer.println("(p);");
+			}
+		}
+		else if (e.name == "Literal") {
+			collectLiteral(e);
+			String lit = sresult;
+			if (lit.length() == 0)
+				return;
+			writer.print(indent);
+			if (nocaseresult) {
+				usesNoCase = true;
+				writer.print("p = noCaseAt(p, \"");
+				writer.print(escapeLiteral(foldCase(lit)));
+				writer.println("\");");
+				return;
+			}
+			if (lit.length() > 3) {
+				writer.print("p = literalAt(p, \"");
+				writer.print(escapeLiteral(lit));
+				writer.println("\");");
+				return;
+			}
+			writer.print("p = ");
+			if (lit.length() == 1)
+				writer.print("p < inend");
+			else {
+				writer.print("p + ");
+				writer.print(lit.length());
+				writer.print(" <= inend");
+			}
+			for (int i = 0; i < lit.length(); i++) {
+				writer.print(" && in[p");
+				if (i > 0) {
+					writer.print("+");
+					writer.print(i);
+				}
+				writer.print("] == ");
+				writer.print(charConstant(lit.charAt(i)));
+			}
+			writer.print(" ? p + ");
+			writer.print(lit.length());
+			writer.println(" : -1;");
+		}
+		else if (e.name == "Class" || e.name == "DOT") {
+			if (e.name == "Class" && e.child == null)
+				return;
+			UnicodeClass unicode = e.name == "Class" ? analyzer.unicodeClass(e) : null;
+			if (unicode != null) {
+				writer.print(indent);
+				writer.print("p = classEnd(");
+				writer.print(classTable(unicode));
+				writer.println(", in, p, inend);");
+				return;
+			}
+			CharSet set = scanSet(e);
+			writer.print(indent);
+			writer.print("p = p < inend");
+			if (!set.equals(CharSet.ALL)) {
+				writer.print(" && (");
+				writer.print(charTest(set, "in[p]"));
+				writer.print(")");
+			}
+			writer.println(" ? p + 1 : -1;");
+		}
+	}
+	
+	/**
+	 * Generate a loop for a repeated class, one char literal, dot or
+	 * (!X .) with X one of those, like generateScan.
+	 */
+	protected boolean generatePositionScan(Node e, boolean plus) {
+		Node until = untilOperand(e);
+		String literal = null;
+		if (until != null && until.name == "Literal") {
+			collectLiteral(until);
+			if (sresult.length() > 1 && !nocaseresult)
+				literal = sresult;
+		}
+		CharSet set = scanSet(e);
+		if (set == null && literal == null)
+			return false;
+		if (set != null && set.equals(CharSet.ALL)) {
+			writer.print(indent);
+			writer.println(plus ? "p = p < inend ? inend : -1;" : "p = inend;");
+			return true;
+		}
+		if (set != null && set.isEmpty()) {
+			if (plus) {
+				writer.print(indent);
+				writer.println("p = -1;");
+			}
+			return true;
+		}
+		int mark = ++loc;
+		if (plus) {
+			writer.print(indent);
+			writer.print("int mark");
+			writer.print(mark);
+			writer.println(" = p;");
+		}
+		writer.print(indent);
+		if (literal != null) {
+			// stop where the literal starts
+			writer.print("while (p < inend && literalAt(p, \"");
+			writer.print(escapeLiteral(literal));
+			writer.println("\") < 0)");
+			writer.print(indent);
+			writer.print(tab);
+			writer.println("p++;");
+		}
+		else {
+			String c = "c" + mark;
+			writer.print("while (p < inend) ");
+			leftBrace();
+			writer.print(indent);
+			writer.print("char ");
+			writer.print(c);
+			writer.println(" = in[p];");
+			writer.print(indent);
+			writer.print("if (");
+			writer.print(charTest(set, c, true));
+			writer.println(")");
+			writer.print(indent);
+			writer.print(tab);
+			writer.println("break;");
+			writer.print(indent);
+			writer.println("p++;");
+			rightBrace();
+		}
+		if (plus) {
+			writer.print(indent);
+			writer.print("if (p == mark");
+			writer.print(mark);
+			writer.println(")");
+			writer.print(indent);
+			writer.print(tab);
+			writer.println("p = -1;");
+		}
+		return true;
+	}
+	
+	/**
+	 * Rules that match without nodes anyway use their rule method.
+	 * Position rules with a node of their own get a recognizer that
+	 * calls the position method.
+	 */
+	boolean hasRecognizer(String rule) {
+		return recRules.contains(rule) && !inlineRules.contains(rule)
+				&& (!posRules.contains(rule) || !isSuppressed(analyzer.getDefinition(rule)));
+	}
+	
+	/**
+	 * Rules called, directly or not, from predicates get a
+	 * recognizer.
+	 */
+	void findRecognizedRules() {
+		ArrayList<String> work = new ArrayList<String>(analyzer.getPredicateReferences());
+		recRules.addAll(work);
+		while (!work.isEmpty()) {
+			String rule = work.remove(work.size()-1);
+			for (String ref : analyzer.getReferences(rule)) {
+				if (recRules.add(ref))
+					work.add(ref);
+			}
+		}
+	}
+	
+	/**
+	 * Generate the body of an instrumented rule method, which calls
+	 * the real rule method and records the outcome for profiling
+	 * and/or flight recorder, or counts the nesting depth.
+	 */
+	protected void generateRuleWrapper(String name) {
+		writer.print("(Node parent) ");
+		leftBrace();
+		boolean countDepth = recursiveRules.contains(name);
+		if (countDepth)
+			generateDepthCheck();
+		if (jfrRuleEvents) {
+			writer.print(indent);
+			writer.println("RuleEvent event = new RuleEvent();");
+			writer.print(indent);
+			writer.println("event.begin();");
+		}
+		if (profile || jfrRuleEvents) {
+			writer.print(indent);
+			writer.println("int inmark = inpos;");
+		}
+		if (profile) {
+			writer.print(indent);
+			writer.println("long saveChild = profChildNanos;");
+			writer.print(indent);
+			writer.println("profChildNanos = 0;");
+			writer.print(indent);
+			writer.println("long start = System.nanoTime();");
+		}
+		writer.print(indent);
+		writer.print("boolean match = rule");
+		writer.print(name);
+		writer.println("$(parent);");
+		if (profile) {
+			writer.print(indent);
+			writer.print("profileRule(");
+			writer.print(ruleOrder.indexOf(name));
+			writer.println(", match, inmark, inpos - inmark, System.nanoTime() - start, saveChild);");
+		}
+		if (jfrRuleEvents) {
+			writer.print(indent);
+			writer.println("event.end();");
+			writer.print(indent);
+			writer.print("if (event.shouldCommit()) ");
+			leftBrace();
+			writer.print(indent);
+			writer.print("event.rule = \"");
+			writer.print(name);
+			writer.println("\";");
+			writer.print(indent);
+			writer.println("event.offset = inmark;");
+			writer.print(indent);
+			writer.println("event.length = inpos - inmark;");
+			writer.print(indent);
+			writer.println("event.success = match;");
+			writer.print(indent);
+			writer.println("event.commit();");
+			rightBrace();
+		}
+		if (countDepth) {
+			writer.print(indent);
+			writer.println("depth--;");
+		}
+		writer.print(indent);
+		writer.println("return match;");
+		rightBrace();
+		writer.println();
+	}
+	
+	protected void generateDepthCheck() {
+		writer.print(indent);
+		writer.println("if (++depth > MAX_DEPTH)");
+		writer.print(indent);
+		writer.print(tab);
+		writer.println("tooDeep();");
+	}
+	
+	/**
+	 * Count a step and, every so many, check the other limits.
+	 * Loops need no check of their own: a repetition must consume
+	 * input, so it runs at most once per char between rule entries.
+	 */
+	protected void generateLimitCheck() {
+		writer.print(indent);
+		writer.println("if (--steps < 0)");
+		writer.print(indent);
+		writer.print(tab);
+		writer.println("checkLimits();");
+	}
+	
+	/**
+	 * Rules that can call themselves, which are the only way to
+	 * nest without limit.
+	 */
+	void findRecursiveRules() {
+		for (String rule : analyzer.getRuleNames()) {
+			for (String ref : analyzer.getReferences(rule)) {
+				if (analyzer.getReachable(ref).contains(rule)) {
+					recursiveRules.add(rule);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rules that can call $Indent or $Outdent. What they match
+	 * depends on the indentation stack, so they put it back when
+	 * they backtrack and only reuse a result found under the same
+	 * stack.
+	 */
+	void findIndentRules() {
+		for (String rule : analyzer.getRuleNames()) {
+			for (String reached : analyzer.getReachable(rule)) {
+				Set<String> refs = analyzer.getReferences(reached);
+				if (refs.contains("$Indent") || refs.contains("$Outdent")) {
+					indentRules.add(rule);
+					break;
+				}
+			}
+		}
+	}
+
+	protected void expectNonNull(Node expr, String string) {
+		if (expr == null) throw new IllegalArgumentException("Found null, expecting "+string);
+	}
+
+	protected void leftBrace() {
+		writer.println("{");
+		indentIn();
+	}
+	
+	protected void rightBrace() {
+		indentOut();
+		writer.print(indent);
+		writer.println("}");
+	}
+
+	protected void rightBraceNoLn() {
+		indentOut();
+		writer.print(indent);
+		writer.print("}");
+	}
+
+	void visitDEFSUPPRESS(Node node) {
+		// DEFSUPPRESS <- SUPPRESS (SUPPRESS / [1-9][0-9]*)?
+	}
+	
+	void visitDOT(Node node) {
+		// DOT <- '.'~ Spacing~
+		writer.print(indent);
 		writer.println("match = matchAny();");
 	}
-
-	void visitExpression(Node node) {
-		// Expression~2 <- Sequence (SLASH~ Sequence)*
+
+	void visitExpression(Node node) {
+		// Expression~2 <- Sequence (SLASH~ Sequence)*
+		if (profile && altCounters.containsKey(node.child)) {
+			// the plain shape has a place to count each alternative
+			generatePlainAlternatives(children(node));
+			return;
+		}
+		if (generateLimited(node))
+			return;
+		if (optimize)
+			generateAlternatives(children(node));
+		else
+			generatePlainAlternatives(children(node));
+	}
+	
+	protected void generatePlainAlternatives(ArrayList<Node> alts) {
+		int loc = ++this.loc;
+		if (count >= 0) {
+			writer.print(indent);
+			writer.print("int markCount");
+			writer.print(loc);
+			writer.println(" = count;");
+		}
+		save(loc);
+		boolean first = true;
+		for (Node sequence : alts) {
+			if (first) {
+				first = false;
+				visit(sequence);
+				countAlternative(sequence);
+			}
+			else {
+				writer.print(indent);
+				writer.print("if (!match) ");
+				leftBrace();
+				if (count >= 0) {
+					writer.print(indent);
+					writer.print("count = markCount");
+					writer.print(loc);
+					writer.println(";");
+				}
+				restore(loc);
+				
+				visit(sequence);
+				countAlternative(sequence);
+				
+				rightBrace();
+			}
+		}
+	}
+	
+	protected void countAlternative(Node alt) {
+		Integer counter = altCounters.get(alt);
+		if (!profile || counter == null)
+			return;
+		writer.print(indent);
+		writer.print("if (match) profAlts[");
+		writer.print(counter);
+		writer.println("]++;");
+	}
+	
+	protected ArrayList<Node> children(Node node) {
+		ArrayList<Node> list = new ArrayList<Node>();
+		for (Node child = node.child; child != null; child = child.next)
+			list.add(child);
+		return list;
+	}
+	
+	protected boolean measuring;
+	protected int predicateDepth;
+	protected String memberIndent;
+	protected String ruleBase;
+	protected int helperCount;
+	protected ArrayList<String> helpers = new ArrayList<String>();
+	protected ArrayList<String> generatedRules = new ArrayList<String>();
+	protected boolean scansUntil;
+	protected ArrayList<String> skipTables = new ArrayList<String>();
+	protected ArrayList<String> classTables = new ArrayList<String>();
+	protected boolean usesNoCase;
+	
+	/** Literals at least this long are searched for with skip tables. */
+	public static final int SKIP_TABLE_LENGTH = 4;
+	/** Classes with more ranges than this, not all ASCII, are tested with tables. */
+	public static final int TABLE_RANGES = 8;
+	
+	/**
+	 * If method size is limited, generate an Expression or Sequence,
+	 * moving parts of it to helper methods if it is too large, and
+	 * return true. Otherwise return false.
+	 */
+	protected boolean generateLimited(Node node) {
+		if (methodLimit <= 0 || measuring || predicateDepth > 0 || ruleBase == null)
+			return false;
+		String code = measure(node);
+		if (estimateSize(code) <= methodLimit * 3 / 4) {
+			emit(code);
+			return true;
+		}
+		ArrayList<Node> parts = children(node);
+		boolean alternatives = node.name == "Expression";
+		ArrayList<ArrayList<Node>> chunks = new ArrayList<ArrayList<Node>>();
+		ArrayList<Node> chunk = new ArrayList<Node>();
+		int size = 0;
+		for (Node part : parts) {
+			int partSize = estimateSize(measure(part));
+			if (!chunk.isEmpty() && size + partSize > methodLimit / 2) {
+				chunks.add(chunk);
+				chunk = new ArrayList<Node>();
+				size = 0;
+			}
+			chunk.add(part);
+			size += partSize;
+		}
+		chunks.add(chunk);
+		
+		int loc = ++this.loc;
+		if (alternatives)
+			save(loc);
+		boolean first = true;
+		for (ArrayList<Node> c : chunks) {
+			String name = generateHelper(c, alternatives);
+			if (!first) {
+				writer.print(indent);
+				writer.print(alternatives ? "if (!match) " : "if (match) ");
+				leftBrace();
+				if (alternatives)
+					restore(loc);
+			}
+			if (count >= 0) {
+				writer.print(indent);
+				writer.print("int delta");
+				writer.print(++this.loc);
+				writer.print(" = ");
+				writer.print(name);
+				writer.println("(rule);");
+				writer.print(indent);
+				writer.print("match = delta");
+				writer.print(this.loc);
+				writer.println(" >= 0;");
+				writer.print(indent);
+				writer.print("if (match) count += delta");
+				writer.print(this.loc);
+				writer.println(";");
+			}
+			else {
+				writer.print(indent);
+				writer.print("match = ");
+				writer.print(name);
+				printlnArg();
+			}
+			if (!first)
+				rightBrace();
+			first = false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Generate code for node without splitting it and return it.
+	 */
+	protected String measure(Node node) {
+		boolean save = measuring;
+		measuring = true;
+		String code = capture(node);
+		measuring = save;
+		return code;
+	}
+	
+	/**
+	 * Estimate bytecode size of generated code. Generated code
+	 * compiles to about a third of a byte per char, not counting
+	 * indentation.
+	 */
+	protected int estimateSize(String code) {
+		int chars = 0;
+		boolean leading = true;
+		for (int i = 0; i < code.length(); i++) {
+			char c = code.charAt(i);
+			if (c == '\n')
+				leading = true;
+			else if (!leading || (c != ' ' && c != '\t' && c != '\r')) {
+				leading = false;
+				chars++;
+			}
+		}
+		return chars * 2 / 5;
+	}
+	
+	/**
+	 * Generate a helper method that matches the alternatives or
+	 * sequence elements in parts and return its name. In rules that
+	 * count matches the helper returns the count, or -1 on failure.
+	 */
+	protected String generateHelper(ArrayList<Node> parts, boolean alternatives) {
+		String name = ruleBase + "$" + (++helperCount);
+		PrintWriter saveWriter = writer;
+		String saveIndent = indent;
+		StringWriter sw = new StringWriter();
+		writer = new PrintWriter(sw);
+		indent = memberIndent;
+		writer.println();
+		writer.print(indent);
+		writer.print(count >= 0 ? "private int " : "private boolean ");
+		writer.print(name);
+		writer.print(suppressRule ? "(Node parent) " : "(Node rule) ");
+		leftBrace();
+		if (count >= 0) {
+			writer.print(indent);
+			writer.println("int count = 0;");
+		}
+		writer.print(indent);
+		writer.println("boolean match = true;");
+		if (parts.size() == 1)
+			visit(parts.get(0));
+		else if (alternatives && optimize)
+			generateAlternatives(parts);
+		else if (alternatives)
+			generatePlainAlternatives(parts);
+		else if (optimize)
+			generateSequence(parts);
+		else
+			generatePlainSequence(parts);
+		writer.print(indent);
+		writer.println(count >= 0 ? "return match ? count : -1;" : "return match;");
+		rightBrace();
+		writer.flush();
+		writer = saveWriter;
+		indent = saveIndent;
+		helpers.add(sw.toString());
+		return name;
+	}
+	
+	/**
+	 * Optimized alternatives. Restores only what the previous
+	 * alternative may have changed and ors simple matches together.
+	 */
+	protected void generateAlternatives(ArrayList<Node> alts) {
 		int loc = ++this.loc;
+		boolean needIn = false;
+		boolean needOut = false;
+		for (int i = 0; i < alts.size()-1; i++) {
+			needIn |= movesOnFail(alts.get(i));
+			needOut |= leavesOnFail(alts.get(i));
+		}
 		if (count >= 0) {
 			writer.print(indent);
 			writer.print("int markCount");
 			writer.print(loc);
 			writer.println(" = count;");
 		}
-		save(loc);
+		if (needIn)
+			saveIn(loc);
+		if (needOut)
+			saveOut(loc);
+		String pending = null;
+		boolean guard = false;
+		Node prev = null;
+		for (Node alt : alts) {
+			boolean restoreIn = prev != null && movesOnFail(prev);
+			boolean restoreOut = prev != null && leavesOnFail(prev);
+			boolean restore = restoreIn || restoreOut || prev != null && count >= 0;
+			String code = capture(alt);
+			String simple = restore ? null : simpleMatch(code);
+			if (simple != null) {
+				if (pending == null) {
+					pending = simple;
+					guard = prev != null;
+				}
+				else
+					pending += " || " + simple;
+			}
+			else {
+				flushMatch(pending, guard, "!match");
+				pending = null;
+				if (prev == null)
+					emit(code);
+				else {
+					writer.print(indent);
+					writer.print("if (!match) ");
+					leftBrace();
+					if (count >= 0) {
+						writer.print(indent);
+						writer.print("count = markCount");
+						writer.print(loc);
+						writer.println(";");
+					}
+					if (restoreIn)
+						restoreIn(loc);
+					if (restoreOut)
+						restoreOut(loc);
+					emit(code);
+					rightBrace();
+				}
+			}
+			prev = alt;
+		}
+		flushMatch(pending, guard, "!match");
+	}
+	
+	/**
+	 * Optimized sequence. Ands simple matches together and tests
+	 * match before each other element instead of nesting them.
+	 */
+	protected void generateSequence(ArrayList<Node> elts) {
+		ArrayList<String> pending = new ArrayList<String>();
+		boolean guard = false;
 		boolean first = true;
-		for (Node sequence = node.child; sequence != null; sequence = sequence.next) {
-			if (first) {
-				first = false;
-				visit(sequence);
+		for (Node prefix : elts) {
+			String code = capture(prefix);
+			String simple = simpleMatch(code);
+			if (simple != null) {
+				if (pending.isEmpty())
+					guard = !first;
+				pending.add(simple);
 			}
 			else {
-				writer.print(indent);
-				writer.print("if (!match) ");
-				leftBrace();
-				if (count >= 0) {
+				flushMatch(conjunction(pending), guard, "match");
+				pending.clear();
+				if (first)
+					emit(code);
+				else {
 					writer.print(indent);
-					writer.print("count = markCount");
-					writer.print(loc);
-					writer.println(";");
+					writer.print("if (match) ");
+					leftBrace();
+					emit(code);
+					rightBrace();
 				}
-				restore(loc);
-				
-				visit(sequence);
-				
-				rightBrace();
 			}
+			first = false;
+		}
+		flushMatch(conjunction(pending), guard, "match");
+	}
+	
+	protected String conjunction(ArrayList<String> terms) {
+		if (terms.isEmpty())
+			return null;
+		if (terms.size() == 1)
+			return terms.get(0);
+		StringBuilder sb = new StringBuilder();
+		for (String term : terms) {
+			if (sb.length() > 0)
+				sb.append(" && ");
+			if (term.indexOf("||") >= 0)
+				sb.append('(').append(term).append(')');
+			else
+				sb.append(term);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Generate code for node at no indent and return it.
+	 */
+	protected String capture(Node node) {
+		PrintWriter saveWriter = writer;
+		String saveIndent = indent;
+		StringWriter sw = new StringWriter();
+		writer = new PrintWriter(sw);
+		indent = "";
+		visit(node);
+		writer.flush();
+		writer = saveWriter;
+		indent = saveIndent;
+		return sw.toString();
+	}
+	
+	/**
+	 * Write captured code at the current indent.
+	 */
+	protected void emit(String code) {
+		int start = 0;
+		while (start < code.length()) {
+			int end = code.indexOf('\n', start);
+			if (end < 0)
+				end = code.length();
+			String line = code.substring(start, end);
+			if (line.endsWith("\r"))
+				line = line.substring(0, line.length()-1);
+			if (line.length() > 0)
+				writer.print(indent);
+			writer.println(line);
+			start = end + 1;
+		}
+	}
+	
+	/**
+	 * If code is the single statement match = expr;
+	 * returns expr, otherwise null.
+	 */
+	protected String simpleMatch(String code) {
+		String line = code.trim();
+		if (line.indexOf('\n') >= 0 || !line.startsWith("match = ") || !line.endsWith(";"))
+			return null;
+		String expr = line.substring(8, line.length()-1);
+		if (expr.startsWith("!") || expr.equals("true"))
+			return null;
+		return expr;
+	}
+	
+	protected void flushMatch(String pending, boolean guard, String condition) {
+		if (pending == null)
+			return;
+		writer.print(indent);
+		if (guard) {
+			writer.print("if (");
+			writer.print(condition);
+			writer.println(")");
+			writer.print(indent);
+			writer.print(tab);
 		}
+		writer.print("match = ");
+		writer.print(pending);
+		writer.println(";");
 	}
 	
 	protected void save(int i) {
@@ -420,6 +2687,7 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		writer.print("int inmark");
 		writer.print(i);
 		writer.println(" = inpos;");
+		saveIndent("mark" + i);
 	}
 
 	protected void saveOut(int i) {
@@ -434,6 +2702,29 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		writer.print("inpos = inmark");
 		writer.print(i);
 		writer.println(";");
+		restoreIndent("mark" + i);
+	}
+	
+	/**
+	 * In a rule that calls $Indent or $Outdent, directly or not,
+	 * the indentation is saved and restored along with inpos.
+	 */
+	protected void saveIndent(String mark) {
+		if (!trackIndent)
+			return;
+		writer.print(indent);
+		writer.print("int indent");
+		writer.print(mark);
+		writer.println(" = indentState;");
+	}
+	
+	protected void restoreIndent(String mark) {
+		if (!trackIndent)
+			return;
+		writer.print(indent);
+		writer.print("indentState = indent");
+		writer.print(mark);
+		writer.println(";");
 	}
 	
 	protected void restoreOut(int i) {
@@ -446,6 +2737,13 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 	void visitGrammar(Node node) {
 		// Grammar <- Spacing Definition+ EndOfFile
 		expect(node, "Grammar");
+		
+		// Generate definitions first to see if they fit in one class
+		ArrayList<String> definitions = new ArrayList<String>();
+		for (Node child = node.child; child != null; child = child.next)
+			definitions.add(capture(child));
+		ArrayList<ArrayList<String>> parts = splitClasses(definitions);
+		
 		if (packageName != null && packageName.length() > 0) {
 			writer.print("package ");
 			writer.print(packageName);
@@ -457,31 +2755,70 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		writer.println("import java.util.LinkedList;");
 		writer.println("import java.util.List;");
 		writer.println();
-		writer.print("public class ");
-		writer.print(className);
-		writer.print(" ");
-		addExtendsImplements();
-		leftBrace();
-		writer.print(indent);
-		writer.println("private Node[] out;");
-		writer.print(indent);
-		writer.println("private char[] in;");
-		writer.print(indent);
-		writer.println("private int inpos;");
-		writer.print(indent);
-		writer.println("private int inend;");
-		writer.print(indent);
-		writer.println("private int outpos;");
-		writer.print(indent);
-		writer.println("private int outend;");
-		writer.print(indent);
-		writer.println("private LinkedList errors;");
-		writer.print(indent);
-    writer.println("private Node lastFail;");
-		writer.println();
-		writer.print(indent);
-		writer.println("private static final int INITIAL_OUT_SIZE = 100;");
-		writer.println();
+		if (parts.size() > 1) {
+			// Base class has the fields and boilerplate, then a class
+			// for each part of the rules, then the parser class
+			shareMembers = true;
+			writer.print("abstract class ");
+			writer.print(className);
+			writer.print("Base ");
+			leftBrace();
+			generateFields();
+			for (String rule : generatedRules) {
+				writer.print(indent);
+				writer.print("protected abstract boolean ");
+				writer.print(ruleName(rule));
+				writer.println("(Node parent);");
+			}
+			for (String rule : generatedRules) {
+				if (hasRecognizer(rule)) {
+					writer.print(indent);
+					writer.print("protected abstract boolean rec");
+					writer.print(rule);
+					writer.println("();");
+				}
+				if (posRules.contains(rule)) {
+					writer.print(indent);
+					writer.print("protected abstract int pos");
+					writer.print(rule);
+					writer.println("(int p);");
+				}
+			}
+			generateBoilerPlate();
+			rightBrace();
+			String superclass = className + "Base";
+			for (int i = 0; i < parts.size()-1; i++) {
+				writer.println();
+				writer.print("abstract class ");
+				writer.print(className);
+				writer.print("Rules");
+				writer.print(i+1);
+				writer.print(" extends ");
+				writer.print(superclass);
+				writer.print(" ");
+				leftBrace();
+				for (String definition : parts.get(i))
+					emit(definition);
+				rightBrace();
+				superclass = className + "Rules" + (i+1);
+			}
+			writer.println();
+			writer.print("public class ");
+			writer.print(className);
+			writer.print(" extends ");
+			writer.print(superclass);
+			writer.print(" ");
+			addExtendsImplements();
+			leftBrace();
+		}
+		else {
+			writer.print("public class ");
+			writer.print(className);
+			writer.print(" ");
+			addExtendsImplements();
+			leftBrace();
+			generateFields();
+		}
 		insertTopMethods();
 		writer.print(indent);
 		writer.println("/**");
@@ -515,8 +2852,19 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		writer.print(indent);
 		writer.print("public Node[] parseLanguage(char[] buf, int start, int length) ");
 		leftBrace();
+		if (jfrEvents) {
+			writer.print(indent);
+			writer.println("ParseEvent event = new ParseEvent();");
+			writer.print(indent);
+			writer.println("event.begin();");
+			writer.print(indent);
+			writer.println("int errorMark = errorCount;");
+		}
 		writer.print(indent);
-		writer.println("out = new Node[INITIAL_OUT_SIZE];");
+		if (arena)
+			writer.println("out = arenaOut();");
+		else
+			writer.println("out = new Node[INITIAL_OUT_SIZE];");
 		writer.print(indent);
 		writer.println("outpos = 0;");
 		writer.print(indent);
@@ -527,6 +2875,30 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		writer.println("inpos = start;");
 		writer.print(indent);
 		writer.println("inend = start + length;");
+		if (!indentRules.isEmpty()) {
+			writer.print(indent);
+			writer.println("resetIndent();");
+		}
+		if (implicitWS()) {
+			writer.print(indent);
+			writer.println("resetWS();");
+		}
+		if (!tokenRules.isEmpty()) {
+			writer.print(indent);
+			writer.println("resetTokens();");
+		}
+		if (limits) {
+			writer.print(indent);
+			writer.println("resetLimits();");
+		}
+		if (!memoRules.isEmpty()) {
+			writer.print(indent);
+			writer.println("resetMemo();");
+		}
+		if (profile) {
+			writer.print(indent);
+			writer.println("resetRetries();");
+		}
 		
 		if (startRule == null) {
 			Node defn = node.child;
@@ -538,13 +2910,31 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 			startRule = PegUtil.strip(in, ident);
 		}
 		
+		if (maxDepth > 0) {
+			writer.print(indent);
+			writer.println("depth = 0;");
+		}
+		if (maxDepth > 0 || limits) {
+			writer.print(indent);
+			writer.print("try ");
+			leftBrace();
+		}
 		writer.print(indent);
 		writer.print("if (");
 		writer.print(ruleName(startRule));
 		writer.print("(null)) ");
 		leftBrace();
-		writer.print(indent);
-		writer.println("return pack();");
+		if (jfrEvents) {
+			// pack() may empty out, so measure it first
+			writer.print(indent);
+			writer.println("int highWater = highWater();");
+			writer.print(indent);
+			writer.println("return endParse(event, length, errorMark, highWater, pack());");
+		}
+		else {
+			writer.print(indent);
+			writer.println("return pack();");
+		}
 		rightBrace();
 		writer.print(indent);
 		writer.print("else ");
@@ -552,35 +2942,317 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		writer.print(indent);
 		writer.println("error();");
 		writer.print(indent);
-		writer.println("return null;");
-		rightBrace();
+		if (jfrEvents)
+			writer.println("return endParse(event, length, errorMark, highWater(), null);");
+		else
+			writer.println("return null;");
+		rightBrace();
+		if (maxDepth > 0 || limits)
+			rightBrace();
+		if (maxDepth > 0) {
+			// the stack can still overflow below the limit, so catch
+			// that too rather than let it kill the thread
+			String[] thrown = {"TooDeep", "StackOverflowError"};
+			for (String type : thrown) {
+				writer.print(indent);
+				writer.print("catch (");
+				writer.print(type);
+				writer.print(" e) ");
+				leftBrace();
+				writer.print(indent);
+				writer.println("nestingError();");
+				writer.print(indent);
+				if (jfrEvents)
+					writer.println("return endParse(event, length, errorMark, highWater(), null);");
+				else
+					writer.println("return null;");
+				rightBrace();
+			}
+		}
+		if (limits) {
+			writer.print(indent);
+			writer.print("catch (OverLimit e) ");
+			leftBrace();
+			writer.print(indent);
+			writer.println("limitError(e.getMessage());");
+			writer.print(indent);
+			if (jfrEvents)
+				writer.println("return endParse(event, length, errorMark, highWater(), null);");
+			else
+				writer.println("return null;");
+			rightBrace();
+		}
+		rightBrace();
+		writer.println();
+		writer.print(indent);
+		writer.println("/**");
+		writer.print(indent);
+		writer.println(" * Returns list of error messages if parse failed,");
+		writer.print(indent);
+		writer.println(" * or null if parse succeeded (except that if");
+		writer.print(indent);
+		writer.println(" * the error rule is used it is possible for a");
+		writer.print(indent);
+		writer.println(" * parse with errors to succeed).");
+		writer.print(indent);
+		writer.println(" */");
+		writer.print(indent);
+		writer.print("public List getErrors() ");
+		leftBrace();
+		writer.print(indent);
+		writer.println("return errors;");
+		rightBrace();
+		writer.println();
+		writer.print(indent);
+		writer.println("/**");
+		writer.print(indent);
+		writer.println(" * Returns the number of nodes in the tree last returned by");
+		writer.print(indent);
+		writer.println(" * parseLanguage. The array may be longer; the entries after");
+		writer.print(indent);
+		writer.println(" * the tree are null.");
+		writer.print(indent);
+		writer.println(" */");
+		writer.print(indent);
+		writer.print("public int getTreeSize() ");
+		leftBrace();
+		writer.print(indent);
+		writer.println("return treeSize;");
+		rightBrace();
+		
+		generateRuleIds();
+		
+		for (String definition : parts.get(parts.size()-1))
+			emit(definition);
+		
+		generateVisitor();
+		if (parts.size() == 1)
+			generateBoilerPlate();
+		
+		rightBrace();
+	}
+	
+	/**
+	 * Members are private unless the parser is split into several classes.
+	 */
+	protected String access() {
+		return shareMembers ? "" : "private ";
+	}
+	
+	protected void generateFields() {
+		writer.print(indent);
+		writer.print(access());
+		writer.println("Node[] out;");
+		writer.print(indent);
+		writer.print(access());
+		writer.println("char[] in;");
+		writer.print(indent);
+		writer.print(access());
+		writer.println("int inpos;");
+		writer.print(indent);
+		writer.print(access());
+		writer.println("int inend;");
+		writer.print(indent);
+		writer.print(access());
+		writer.println("int outpos;");
+		writer.print(indent);
+		writer.print(access());
+		writer.println("int outend;");
+		writer.print(indent);
+		writer.print(access());
+		writer.println("LinkedList errors;");
+		writer.print(indent);
+		writer.print(access());
+		writer.println("int treeSize;");
+		writer.print(indent);
+		writer.print(access());
+		writer.println("int errorCount;");
+		writer.print(indent);
+		writer.print(access());
+		writer.println("int lastFail = -1;");
+		writer.println();
+		writer.print(indent);
+		writer.print(access());
+		writer.println("static final int INITIAL_OUT_SIZE = 100;");
+		writer.println();
+	}
+	
+	/**
+	 * Divide generated rule methods among classes so no class has
+	 * more than about classLimit constant pool entries. Entries are
+	 * estimated from the string literals and method names used.
+	 */
+	protected ArrayList<ArrayList<String>> splitClasses(ArrayList<String> definitions) {
+		ArrayList<ArrayList<String>> parts = new ArrayList<ArrayList<String>>();
+		ArrayList<String> part = new ArrayList<String>();
+		parts.add(part);
+		if (classLimit <= 0) {
+			part.addAll(definitions);
+			return parts;
+		}
+		HashSet<String> constants = new HashSet<String>();
+		for (String definition : definitions) {
+			HashSet<String> used = new HashSet<String>();
+			collectConstants(definition, used);
+			HashSet<String> union = new HashSet<String>(constants);
+			union.addAll(used);
+			if (!part.isEmpty() && union.size() * 3 > classLimit) {
+				part = new ArrayList<String>();
+				parts.add(part);
+				union = used;
+			}
+			part.add(definition);
+			constants = union;
+		}
+		return parts;
+	}
+	
+	/**
+	 * Add the string literals and called or declared method names
+	 * in code to constants. Each needs up to three constant pool
+	 * entries.
+	 */
+	protected void collectConstants(String code, HashSet<String> constants) {
+		int n = code.length();
+		for (int i = 0; i < n; i++) {
+			char c = code.charAt(i);
+			if (c == '"') {
+				int j = i + 1;
+				while (j < n && code.charAt(j) != '"') {
+					if (code.charAt(j) == '\\')
+						j++;
+					j++;
+				}
+				constants.add(code.substring(i, Math.min(j+1, n)));
+				i = j;
+			}
+			else if (c == '\'') {
+				// skip char literals, which may be quotes
+				i += code.charAt(i+1) == '\\' ? 3 : 2;
+			}
+			else if (Character.isJavaIdentifierStart(c)) {
+				int j = i + 1;
+				while (j < n && Character.isJavaIdentifierPart(code.charAt(j)))
+					j++;
+				if (j < n && code.charAt(j) == '(')
+					constants.add(code.substring(i, j));
+				i = j - 1;
+			}
+		}
+	}
+
+	/**
+	 * Generate a dense int id for each rule that can appear in the tree,
+	 * and a ruleId method that maps node names to ids.
+	 */
+	protected void generateRuleIds() {
+		writer.println();
+		for (int i = 0; i < treeRules.size(); i++) {
+			writer.print(indent);
+			writer.print("public static final int ");
+			writer.print(ruleIds.get(treeRules.get(i)));
+			writer.print(" = ");
+			writer.print(i);
+			writer.println(";");
+		}
+		writer.println();
+		writer.print(indent);
+		writer.println("/**");
+		writer.print(indent);
+		writer.println(" * Returns the id of the rule that produced a node");
+		writer.print(indent);
+		writer.println(" * with the given name, or -1 if there is none.");
+		writer.print(indent);
+		writer.println(" * This is a switch on the name string: the hash of the");
+		writer.print(indent);
+		writer.println(" * interned name is cached and equals() succeeds on the");
+		writer.print(indent);
+		writer.println(" * reference test, but it is not an array index.");
+		writer.print(indent);
+		writer.println(" */");
+		writer.print(indent);
+		writer.print("public static int ruleId(String name) ");
+		leftBrace();
+		if (!treeRules.isEmpty()) {
+			writer.print(indent);
+			writer.print("switch (name) ");
+			leftBrace();
+			for (String rule : treeRules) {
+				writer.print(indent);
+				writer.print("case \"");
+				writer.print(rule);
+				writer.println("\" :");
+				writer.print(indent);
+				writer.print(tab);
+				writer.print("return ");
+				writer.print(ruleIds.get(rule));
+				writer.println(";");
+			}
+			rightBrace();
+		}
+		writer.print(indent);
+		writer.println("return -1;");
 		rightBrace();
+	}
+	
+	/**
+	 * Generate an abstract Visitor class with a method for each rule
+	 * that can appear in the tree. Dispatch is a switch on rule id,
+	 * which ruleId still finds with a string switch on the node name.
+	 */
+	protected void generateVisitor() {
 		writer.println();
 		writer.print(indent);
 		writer.println("/**");
 		writer.print(indent);
-		writer.println(" * Returns list of error messages if parse failed,");
+		writer.println(" * Visitor for trees produced by this parser. visit() switches");
 		writer.print(indent);
-		writer.println(" * or null if parse succeeded (except that if");
+		writer.println(" * on ruleId(node.name), itself a string switch on the name.");
 		writer.print(indent);
-		writer.println(" * the error rule is used it is possible for a");
+		writer.println(" */");
 		writer.print(indent);
-		writer.println(" * parse with errors to succeed).");
+		writer.print("public static abstract class Visitor ");
+		leftBrace();
+		writer.println();
 		writer.print(indent);
-		writer.println(" */");
+		writer.print("public void visit(Node node) ");
+		leftBrace();
 		writer.print(indent);
-		writer.print("public List getErrors() ");
+		writer.print("switch (ruleId(node.name)) ");
+		leftBrace();
+		for (String rule : treeRules) {
+			writer.print(indent);
+			writer.print("case ");
+			writer.print(ruleIds.get(rule));
+			writer.println(" :");
+			writer.print(indent);
+			writer.print(tab);
+			writer.print("visit");
+			writer.print(rule);
+			writer.println("(node);");
+			writer.print(indent);
+			writer.print(tab);
+			writer.println("break;");
+		}
+		rightBrace();
+		rightBrace();
+		writer.println();
+		writer.print(indent);
+		writer.print("public void visitChildren(Node node) ");
 		leftBrace();
 		writer.print(indent);
-		writer.println("return errors;");
+		writer.println("for (Node child = node.child; child != null; child = child.next)");
+		writer.print(indent);
+		writer.print(tab);
+		writer.println("visit(child);");
 		rightBrace();
-		
-		// Generate definitions
-		for (Node child = node.child; child != null; child = child.next)
-			visit(child);
-		
-		generateBoilerPlate();
-		
+		for (String rule : treeRules) {
+			writer.println();
+			writer.print(indent);
+			writer.print("protected abstract void visit");
+			writer.print(rule);
+			writer.println("(Node node);");
+		}
 		rightBrace();
 	}
 
@@ -623,10 +3295,20 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 	void visitIdentifier(Node node) {
 		// this is only reached for nonterminal identifiers used in rule bodies
 		String id = PegUtil.strip(in, node);
-		writer.print(indent);
-		writer.print("match = ");
-		writer.print(ruleName(id));
-		printlnArg();
+		if (inlineRules.contains(id))
+			generateInline(id);
+		else if (recognizing) {
+			writer.print(indent);
+			writer.print("match = ");
+			writer.print(recognizerName(id));
+			writer.println(";");
+		}
+		else {
+			writer.print(indent);
+			writer.print("match = ");
+			writer.print(ruleName(id));
+			printlnArg();
+		}
     if (inBNFRule && !BNFRules.contains(id))
       callWS();
 		if (count >= 0) {
@@ -635,6 +3317,52 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		}
 	}
 	
+	/**
+	 * Generate the body of a suppressed rule in place of a call.
+	 * Like the rule method, restores the input position on failure.
+	 */
+	void generateInline(String id) {
+		Node defn = analyzer.getDefinition(id);
+		Node expr = GrammarAnalyzer.body(defn);
+		boolean saveBNF = inBNFRule;
+		int saveCount = count;
+		inBNFRule = defn.name == "BNFDefinition";
+		count = -1;
+		writer.print(indent);
+		writer.print("// ");
+		writer.println(id);
+		if (isTerminal(expr)) {
+			// a single terminal does not move on failure
+			visit(expr);
+		}
+		else {
+			int mark = ++loc;
+			save(mark);
+			writer.print(indent);
+			writer.println("match = true;");
+			if (expr != null)
+				visit(expr);
+			writer.print(indent);
+			writer.print("if (!match) ");
+			leftBrace();
+			restore(mark);
+			rightBrace();
+		}
+		inBNFRule = saveBNF;
+		count = saveCount;
+	}
+	
+	/**
+	 * True if expr is a literal, class or dot that generates a match.
+	 */
+	boolean isTerminal(Node expr) {
+		if (expr == null)
+			return false;
+		if (expr.name == "DOT")
+			return true;
+		return (expr.name == "Literal" || expr.name == "Class") && expr.child != null;
+	}
+	
 	/**
 	 * Strip string of lexical artifacts
 	 * whitespace and comments.
@@ -651,19 +3379,43 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 	protected void collectLiteral(Node literal) {
 		expect(literal, "Literal");
 		StringBuffer buf = new StringBuffer();
+		nocaseresult = false;
 		for (Node child = literal.child; child != null; child = child.next) {
+			if (child.name == "NOCASE") {
+				nocaseresult = true;
+				break;
+			}
 			expect(child, "Char");
 			visit(child);
-			buf.append(cresult);
+			buf.appendCodePoint(cpresult);
 		}
 		sresult = buf.toString();
 	}
+	
+	/**
+	 * s with each char folded as for equalsIgnoreCase.
+	 */
+	protected String foldCase(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++)
+			sb.append(PegUtil.foldCase(s.charAt(i)));
+		return sb.toString();
+	}
 
 	void visitLiteral(Node node) {
 		// Literal <- [']~ (!['] Char)* [']~ Spacing
 		// / ["]~ (!["] Char)* ["]~ Spacing
 		collectLiteral(node);
-		if (sresult.length() > 0) {
+		if (nocaseresult) {
+			usesNoCase = true;
+			writer.print(indent);
+			writer.print("match = matchNoCase(\"");
+			writer.print(escapeLiteral(foldCase(sresult)));
+			writer.println("\");");
+			if (inBNFRule)
+				callWS();
+		}
+		else if (sresult.length() > 0) {
 			if (sresult.length() == 1) {
 				writer.print(indent);
 				writer.print("match = matchChar('");
@@ -683,11 +3435,43 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
     
   void callWS() {
     writer.print(indent);
+    if (optimize && implicitWS()) {
+      // most calls find no whitespace, so test for it in place
+      writer.println("if (match && inpos < inend && in[inpos] <= ' ')");
+      writer.print(indent);
+      writer.print(tab);
+      writer.println("skipWS();");
+      return;
+    }
     writer.println("if (match)");
     writer.print(indent);
     writer.print(tab);
-    writer.print(ruleName("WS"));
-    printlnArg();
+    if (recognizing) {
+      writer.print(recognizerName("WS"));
+      writer.println(";");
+    }
+    else {
+      writer.print(ruleName("WS"));
+      printlnArg();
+    }
+  }
+  
+  /**
+   * True if the grammar has ::= rules but no WS rule, so the
+   * parser supplies one.
+   */
+  protected boolean implicitWS() {
+    return !BNFRules.isEmpty() && !allRules.contains("WS");
+  }
+  
+  /**
+   * Call of the recognizer for a rule. Special rules and the
+   * implicit WS rule don't add nodes anyway.
+   */
+  protected String recognizerName(String id) {
+    if (analyzer.getDefinition(id) != null && hasRecognizer(id))
+      return "rec" + id + "()";
+    return ruleName(id) + "(null)";
   }
 
 	void visitPrefix(Node node) {
@@ -697,12 +3481,39 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		Node suffix = andnot.next;
 		
 		int mark = ++loc;
-
-		save(mark);
-		
-		visit(suffix);
+		predicateDepth++;
+		boolean saveRecognizing = recognizing;
+		recognizing = recognizers;
 		
-		restore(mark);
+		if (optimize) {
+			boolean out = addsNodes(suffix);
+			saveIn(mark);
+			if (out)
+				saveOut(mark);
+			String code = capture(suffix);
+			String simple = simpleMatch(code);
+			if (simple != null && not) {
+				writer.print(indent);
+				writer.print("match = !");
+				writer.print(simple);
+				writer.println(";");
+				not = false;
+			}
+			else
+				emit(code);
+			restoreIn(mark);
+			if (out)
+				restoreOut(mark);
+		}
+		else {
+			save(mark);
+			
+			visit(suffix);
+			
+			restore(mark);
+		}
+		predicateDepth--;
+		recognizing = saveRecognizing;
 		
 		if (not) {
 			writer.print(indent);
@@ -720,7 +3531,11 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 	
 	void visitTerm(Node node) {
 		expect(node, "Term");
-		if (node.child != null) {
+		if (node.child != null && optimize) {
+			// generated locals have unique names, no block needed
+			visit(node.child);
+		}
+		else if (node.child != null) {
 			// () is allowed
 			writer.print(indent);
 			leftBrace();
@@ -739,83 +3554,416 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		return buf.toString();
 	}
 	
-	protected String escapeChar(char c, boolean toliteral) {
-		String result;
-		if (c == '\r')
-			result = "\\r";
-		else if (c == '\n')
-			result = "\\n";
-		else if (c == '\t')
-			result = "\\t";
-		else if (c == '\\')
-			result = "\\\\";
-		else if (c == '\'' && !toliteral)
-			result = "\\'";
-		else if (c == '"' && toliteral)
-			result = "\\\"";
-		else
-			result = ""+c;
-		return result;
-	}
-
-	void printlnArg() {
-		writer.print("(");
-		if (suppressRule)
-			writer.print("parent");
-		else
-			writer.print("rule");
-		writer.println(");");
+	protected String escapeChar(char c, boolean toliteral) {
+		String result;
+		if (c == '\r')
+			result = "\\r";
+		else if (c == '\n')
+			result = "\\n";
+		else if (c == '\t')
+			result = "\\t";
+		else if (c == '\\')
+			result = "\\\\";
+		else if (c == '\'' && !toliteral)
+			result = "\\'";
+		else if (c == '"' && toliteral)
+			result = "\\\"";
+		else if (c < ' ')
+			result = "\\" + (char) ('0' + (c >> 6)) + (char) ('0' + (c >> 3 & 7)) + (char) ('0' + (c & 7));
+		else if (c > '~')
+			// so the source doesn't depend on its encoding
+			result = String.format("\\u%04x", (int) c);
+		else
+			result = ""+c;
+		return result;
+	}
+
+	void printlnArg() {
+		writer.print("(");
+		if (suppressRule)
+			writer.print("parent");
+		else
+			writer.print("rule");
+		writer.println(");");
+	}
+
+	void visitSequence(Node node) {
+		// Sequence~2 <- Prefix*
+		if (generateLimited(node))
+			return;
+		if (optimize)
+			generateSequence(children(node));
+		else
+			generatePlainSequence(children(node));
+	}
+	
+	protected void generatePlainSequence(ArrayList<Node> elts) {
+		boolean first = true;
+		for (Node prefix : elts) {
+			if (first) {
+				first = false;
+				visit(prefix);
+			}
+			else {
+				writer.print(indent);
+				writer.print("if (match) ");
+				leftBrace();
+				
+				visit(prefix);
+				
+				rightBrace();
+			}
+		}
+	}
+
+	void visitSuffix(Node node) {
+		// Suffix~2 <- SuppressPrimary (QUESTION / STAR / PLUS)?
+		Node sp = node.child;
+		Node post = sp.next;
+		if (optimize && post.name != "QUESTION" && generateScan(sp, post.name == "PLUS"))
+			return;
+		if (post.name == "QUESTION") {
+			generateAttempt(sp);
+			writer.print(indent);
+			writer.println("match = true;");
+		}
+		else if (post.name == "STAR") {
+			printSTAR(sp);
+		}
+		else if (post.name == "PLUS") {
+			visit(sp);
+			writer.print(indent);
+			writer.print("if (match) ");
+			leftBrace();
+			printSTAR(sp);
+			rightBrace();
+		}
+		else
+			expect(post, "STAR");
+	}
+	
+	/**
+	 * Generate e where its failure doesn't fail the enclosing
+	 * expression, so anything e matched before failing must be
+	 * given back.
+	 */
+	protected void generateAttempt(Node e) {
+		boolean restoreIn = movesOnFail(e);
+		boolean restoreOut = leavesOnFail(e);
+		if (!restoreIn && !restoreOut) {
+			visit(e);
+			return;
+		}
+		int mark = ++loc;
+		if (restoreIn)
+			saveIn(mark);
+		if (restoreOut)
+			saveOut(mark);
+		if (count >= 0) {
+			writer.print(indent);
+			writer.print("int markCount");
+			writer.print(mark);
+			writer.println(" = count;");
+		}
+		visit(e);
+		writer.print(indent);
+		writer.print("if (!match) ");
+		leftBrace();
+		if (restoreIn)
+			restoreIn(mark);
+		if (restoreOut)
+			restoreOut(mark);
+		if (count >= 0) {
+			writer.print(indent);
+			writer.print("count = markCount");
+			writer.print(mark);
+			writer.println(";");
+		}
+		rightBrace();
+	}
+	
+	/**
+	 * Generate e* or e+ as a loop over the input array, if e
+	 * matches a single char from a set. Returns false if it can't.
+	 */
+	protected boolean generateScan(Node e, boolean plus) {
+		Node until = untilOperand(e);
+		if (until != null && until.name == "Literal") {
+			collectLiteral(until);
+			if (sresult.length() > 1 && !nocaseresult) {
+				generateScanUntil(sresult, plus);
+				return true;
+			}
+		}
+		// the whitespace skipped after each char in ::= rules
+		// doesn't change what a predicate matches
+		if (inBNFRule && until == null)
+			return false;
+		CharSet set = scanSet(e);
+		if (set == null)
+			return false;
+		if (set.equals(CharSet.ALL)) {
+			writer.print(indent);
+			writer.println(plus ? "match = inpos < inend;" : "match = true;");
+			writer.print(indent);
+			writer.println("inpos = inend;");
+			return true;
+		}
+		if (set.isEmpty()) {
+			writer.print(indent);
+			writer.println(plus ? "match = false;" : "match = true;");
+			return true;
+		}
+		int mark = ++loc;
+		String p = "scan" + mark;
+		String c = "c" + mark;
+		writer.print(indent);
+		writer.print("int ");
+		writer.print(p);
+		writer.println(" = inpos;");
+		writer.print(indent);
+		writer.print("while (");
+		writer.print(p);
+		writer.print(" < inend) ");
+		leftBrace();
+		writer.print(indent);
+		writer.print("char ");
+		writer.print(c);
+		writer.print(" = in[");
+		writer.print(p);
+		writer.println("];");
+		writer.print(indent);
+		writer.print("if (");
+		writer.print(charTest(set, c, true));
+		writer.println(")");
+		writer.print(indent);
+		writer.print(tab);
+		writer.println("break;");
+		writer.print(indent);
+		writer.print(p);
+		writer.println("++;");
+		rightBrace();
+		writer.print(indent);
+		if (plus) {
+			writer.print("match = ");
+			writer.print(p);
+			writer.println(" > inpos;");
+		}
+		else
+			writer.println("match = true;");
+		writer.print(indent);
+		writer.print("inpos = ");
+		writer.print(p);
+		writer.println(";");
+		return true;
+	}
+	
+	/**
+	 * The chars e matches if it is a class, a one char literal or
+	 * dot, otherwise null.
+	 */
+	protected CharSet scanSet(Node e) {
+		Node until = untilOperand(e);
+		if (until != null) {
+			CharSet set = scanSet(until);
+			return set == null ? null : CharSet.ALL.minus(set);
+		}
+		e = unwrap(e);
+		if (e.name == "DOT")
+			return CharSet.ALL;
+		if (e.name == "Class" && e.child != null)
+			return analyzer.unicodeClass(e) == null ? analyzer.classSet(e) : null;
+		if (e.name == "Literal") {
+			collectLiteral(e);
+			if (sresult.length() == 1)
+				return nocaseresult ? CharSet.ofIgnoreCase(sresult.charAt(0)) : CharSet.of(sresult.charAt(0));
+		}
+		return null;
+	}
+	
+	protected Node unwrap(Node e) {
+		while (e.name == "SuppressPrimary" || e.name == "Term" && e.child != null && e.child.next == null)
+			e = e.child;
+		return e;
+	}
+	
+	/**
+	 * X if e is (!X .), otherwise null.
+	 */
+	protected Node untilOperand(Node e) {
+		e = unwrap(e);
+		if (e.name != "Sequence")
+			return null;
+		Node prefix = e.child;
+		if (prefix.name != "Prefix" || prefix.child.name != "NOT")
+			return null;
+		Node dot = prefix.next;
+		if (dot == null || dot.next != null || unwrap(dot).name != "DOT")
+			return null;
+		return unwrap(prefix.child.next);
+	}
+	
+	/**
+	 * Generate (!literal .)* or + as a search for literal.
+	 */
+	protected void generateScanUntil(String literal, boolean plus) {
+		scansUntil = true;
+		String call = "scanUntil(\"" + escapeLiteral(literal) + "\"";
+		if (literal.length() >= SKIP_TABLE_LENGTH) {
+			int table = skipTables.indexOf(literal);
+			if (table < 0) {
+				table = skipTables.size();
+				skipTables.add(literal);
+			}
+			call += ", SKIP" + table;
+		}
+		call += ")";
+		writer.print(indent);
+		if (plus) {
+			int mark = ++loc;
+			writer.print("int scan");
+			writer.print(mark);
+			writer.print(" = ");
+			writer.print(call);
+			writer.println(";");
+			writer.print(indent);
+			writer.print("match = scan");
+			writer.print(mark);
+			writer.println(" > inpos;");
+			writer.print(indent);
+			writer.print("inpos = scan");
+			writer.print(mark);
+			writer.println(";");
+		}
+		else {
+			writer.print("inpos = ");
+			writer.print(call);
+			writer.println(";");
+			writer.print(indent);
+			writer.println("match = true;");
+		}
+	}
+	
+	protected void generateScanPlate() {
+		generateArray(SCAN_UNTIL);
+		if (skipTables.isEmpty())
+			return;
+		generateArray(SKIP_TABLE);
+		writer.println();
+		for (int i = 0; i < skipTables.size(); i++) {
+			writer.print(indent);
+			writer.print(access());
+			writer.print("static final int[] SKIP");
+			writer.print(i);
+			writer.print(" = skipTable(\"");
+			writer.print(escapeLiteral(skipTables.get(i)));
+			writer.println("\");");
+		}
+	}
+	
+	/**
+	 * Java expression that is true if the char variable c is in set,
+	 * or not in set if negate is true. Tests whichever of set and its
+	 * complement has fewer ranges.
+	 */
+	protected String charTest(CharSet set, String c, boolean negate) {
+		CharSet complement = set.complement();
+		if (complement.rangeCount() < set.rangeCount()) {
+			set = complement;
+			negate = !negate;
+		}
+		if (!negate)
+			return charTest(set, c);
+		if (set.rangeCount() == 1 && set.rangeLo(0) == set.rangeHi(0))
+			return c + " != " + charConstant(set.rangeLo(0));
+		return "!(" + charTest(set, c) + ")";
 	}
-
-	void visitSequence(Node node) {
-		// Sequence~2 <- Prefix*
-		boolean first = true;
-		for (Node prefix = node.child; prefix != null; prefix = prefix.next) {
-			if (first) {
-				first = false;
-				visit(prefix);
+	
+	/**
+	 * Java expression that is true if the char variable c is in set.
+	 * Sets of many ASCII ranges test a bit in a pair of long masks,
+	 * other sets of many ranges a bit in a table.
+	 */
+	protected String charTest(CharSet set, String c) {
+		int n = set.rangeCount();
+		if (isTableSet(set)) {
+			String table = classTable(UnicodeClass.of(set));
+			return "(" + table + "[" + table + "[" + c + " >> 8] + (" + c + " >> 4 & 15)] >>> ("
+				+ c + " & 15) & 1) != 0";
+		}
+		if (n > 3 && set.rangeHi(n-1) < 128) {
+			long lo = 0;
+			long hi = 0;
+			for (int i = 0; i < n; i++) {
+				for (int ch = set.rangeLo(i); ch <= set.rangeHi(i); ch++) {
+					if (ch < 64)
+						lo |= 1L << ch;
+					else
+						hi |= 1L << ch;
+				}
 			}
+			return c + " < 64 ? (0x" + Long.toHexString(lo) + "L >>> " + c + " & 1) != 0 : "
+				+ c + " < 128 && (0x" + Long.toHexString(hi) + "L >>> " + c + " & 1) != 0";
+		}
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0; i < n; i++) {
+			if (i > 0)
+				buf.append(" || ");
+			char lo = set.rangeLo(i);
+			char hi = set.rangeHi(i);
+			if (lo == hi)
+				buf.append(c).append(" == ").append(charConstant(lo));
+			else if (lo == 0)
+				buf.append(c).append(" <= ").append(charConstant(hi));
+			else if (hi == Character.MAX_VALUE)
+				buf.append(c).append(" >= ").append(charConstant(lo));
 			else {
-				writer.print(indent);
-				writer.print("if (match) ");
-				leftBrace();
-				
-				visit(prefix);
-				
-				rightBrace();
+				buf.append(c).append(" >= ").append(charConstant(lo));
+				buf.append(" && ").append(c).append(" <= ").append(charConstant(hi));
 			}
 		}
+		return buf.toString();
 	}
-
-	void visitSuffix(Node node) {
-		// Suffix~2 <- SuppressPrimary (QUESTION / STAR / PLUS)?
-		Node sp = node.child;
-		Node post = sp.next;
-		if (post.name == "QUESTION") {
-			visit(sp);
-			writer.print(indent);
-			writer.println("match = true;");
-		}
-		else if (post.name == "STAR") {
-			printSTAR(sp);
-		}
-		else if (post.name == "PLUS") {
-			visit(sp);
-			writer.print(indent);
-			writer.print("if (match) ");
-			leftBrace();
-			printSTAR(sp);
-			rightBrace();
+	
+	/**
+	 * True if set has too many ranges to test one by one, and
+	 * they aren't all ASCII.
+	 */
+	protected boolean isTableSet(CharSet set) {
+		int n = set.rangeCount();
+		return n > TABLE_RANGES && set.rangeHi(n-1) >= 128;
+	}
+	
+	/**
+	 * The name of the table of a class, which is shared by classes
+	 * with the same table.
+	 */
+	protected String classTable(UnicodeClass unicode) {
+		String table = new String(unicode.table());
+		int i = classTables.indexOf(table);
+		if (i < 0) {
+			i = classTables.size();
+			classTables.add(table);
 		}
-		else
-			expect(post, "STAR");
+		return "CLASS" + i;
+	}
+	
+	/**
+	 * A char as a Java constant. Chars that aren't printable ASCII
+	 * are written as numbers, since a unicode escape of a line
+	 * terminator would end the line.
+	 */
+	protected String charConstant(char c) {
+		if (c == '\t' || c == '\n' || c == '\r' || c >= ' ' && c <= '~')
+			return "'" + escapeChar(c, false) + "'";
+		return "0x" + Integer.toHexString(c);
 	}
 	
 	protected void printSTAR(Node e) {
 		writer.print(indent);
 		writer.print("do ");
 		leftBrace();
-		visit(e);
+		generateAttempt(e);
 		rightBraceNoLn();
 		writer.println(" while(match);");
 		writer.print(indent);
@@ -826,6 +3974,10 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		// SuppressPrimary~2 <- Primary SUPPRESS?
 		Node primary = node.child;
 		Node suppress = primary.next;
+		if (optimize && !addsNodes(primary)) {
+			visit(primary);
+			return;
+		}
 		int mark = ++loc;
 		
 		saveOut(mark);
@@ -851,6 +4003,8 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		StringBuffer buf = new StringBuffer();
 		for (int i = 0; i < array.length; i++) {
 			String s = array[i];
+			if (shareMembers && s.startsWith("private "))
+				s = s.substring(8);
 			for (int j = 0, n = s.length(); j < n; j++) {
 				char c = s.charAt(j);
 				if (c == '\t')
@@ -867,72 +4021,1070 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
   }
   
 	protected void generateBoilerPlate() {
-    if (!BNFRules.isEmpty() && !allRules.contains("WS"))
+    if (implicitWS())
       generateArray(WS);
-    generateArray(PLATE);
+    if (scansUntil)
+      generateScanPlate();
+    if (!recRules.isEmpty() || !chainTop.isEmpty())
+      generateArray(FAIL_AT);
+    if (!chainTop.isEmpty())
+      generateArray(limitsVersion(arenaVersion(CLIMB)));
+    if (!posRules.isEmpty())
+      generateArray(LITERAL_AT);
+    if (!classTables.isEmpty())
+      generateClassPlate();
+    if (usesNoCase)
+      generateArray(NO_CASE);
+    if (!tokenRules.isEmpty())
+      generateTokenPlate();
+    if (maxDepth > 0)
+      generateDepthPlate();
+    if (limits)
+      generateArray(LIMITS);
+    if (!memoRules.isEmpty())
+      generateMemoPlate();
+    if (!indentRules.isEmpty())
+      generateArray(INDENT_MEMO);
+    if (profile)
+      generateProfilePlate();
+    if (jfrEvents)
+      generateArray(JFR_PARSE);
+    if (jfrRuleEvents)
+      generateArray(JFR_RULE);
+    generateArray(arena ? ARENA : PACK);
+    generateArray(limitsVersion(arenaVersion(PLATE)));
+	}
+	
+	/**
+	 * With an arena, boilerplate gets its nodes from newNode().
+	 */
+	protected String[] arenaVersion(String[] array) {
+		if (!arena)
+			return array;
+		String[] result = new String[array.length];
+		for (int i = 0; i < array.length; i++)
+			result[i] = array[i].replace("new Node(", "newNode(");
+		return result;
+	}
+	
+	/**
+	 * With -limits, boilerplate checks the node limit wherever out
+	 * grows, so the limit is exact.
+	 */
+	protected String[] limitsVersion(String[] array) {
+		if (!limits)
+			return array;
+		ArrayList<String> result = new ArrayList<String>();
+		for (String line : array) {
+			// attempt(), wrap() and recallNodes()
+			if (line.equals("  out[outpos++] = node;\n") || line.equals("  outpos++;\n"))
+				result.add("  checkNodes(1);\n");
+			else if (line.equals("  int base = outpos;\n"))
+				result.add("  checkNodes(count);\n");
+			result.add(line);
+		}
+		return result.toArray(new String[result.size()]);
+	}
+	
+	protected void generateProfilePlate() {
+		writer.println();
+		writer.print(indent);
+		writer.print(access());
+		writer.print("static final String[] PROFILE_RULES = ");
+		leftBrace();
+		for (String rule : ruleOrder) {
+			writer.print(indent);
+			writer.print("\"");
+			writer.print(rule);
+			writer.println("\",");
+		}
+		indentOut();
+		writer.print(indent);
+		writer.println("};");
+		writer.print(indent);
+		writer.print(access());
+		writer.print("static final String[] PROFILE_CHOICES = ");
+		leftBrace();
+		for (int i = 0; i < choiceNames.size(); i++) {
+			writer.print(indent);
+			writer.print("\"");
+			writer.print(choiceNames.get(i));
+			writer.println("\",");
+		}
+		indentOut();
+		writer.print(indent);
+		writer.println("};");
+		// where the counters of each choice start, then the total
+		writer.print(indent);
+		writer.print(access());
+		writer.print("static final int[] PROFILE_ALTS = {");
+		int start = 0;
+		for (Node choice : choiceNodes) {
+			writer.print(start);
+			writer.print(", ");
+			start += children(choice).size();
+		}
+		writer.print(start);
+		writer.println("};");
+		generateArray(PROFILE);
+	}
+	
+	protected void generateMemoPlate() {
+		writer.println();
+		writer.print(indent);
+		writer.print(access());
+		writer.print("static final int MEMO_THRESHOLD = ");
+		writer.print(memo);
+		writer.println(";");
+		writer.print(indent);
+		writer.print(access());
+		writer.print("static final int MEMO_EAGER = ");
+		writer.print(memoEager);
+		writer.println(";");
+		writer.print(indent);
+		writer.print(access());
+		writer.print("static final String[] MEMO_RULES = ");
+		leftBrace();
+		for (String rule : memoRules) {
+			writer.print(indent);
+			writer.print("\"");
+			writer.print(rule);
+			writer.println("\",");
+		}
+		indentOut();
+		writer.print(indent);
+		writer.println("};");
+		generateArray(limitsVersion(arenaVersion(MEMO)));
+	}
+	
+	protected void generateDepthPlate() {
+		writer.println();
+		writer.print(indent);
+		writer.print(access());
+		writer.print("static final int MAX_DEPTH = ");
+		writer.print(maxDepth);
+		writer.println(";");
+		generateArray(DEPTH);
+	}
+	
+	/**
+	 * The class tables and, if a class matches code points, the
+	 * methods that match them.
+	 */
+	protected void generateClassPlate() {
+		for (int i = 0; i < classTables.size(); i++) {
+			String table = classTables.get(i);
+			writer.println();
+			writer.print(indent);
+			writer.print(access());
+			writer.print("static final char[] CLASS");
+			writer.print(i);
+			writer.println(" = (");
+			for (int j = 0; j < table.length(); j += 16) {
+				writer.print(indent);
+				writer.print(tab);
+				writer.print("\"");
+				for (int k = j; k < j + 16 && k < table.length(); k++)
+					writer.print(tableChar(table.charAt(k)));
+				writer.println(j + 16 < table.length() ? "\" +" : "\").toCharArray();");
+			}
+		}
+		generateArray(CLASS_TABLE);
+	}
+	
+	protected void generateTokenPlate() {
+		writer.println();
+		writer.print(indent);
+		writer.print(access());
+		writer.print("static final int TOKEN_RULES = ");
+		writer.print(tokenRules.size());
+		writer.println(";");
+		generateArray(TOKENS);
 	}
 	
 	protected String[] getBoilerPlate() {
 		return PLATE;
 	}
 	
+  protected static final String[] FAIL_AT = {
+  "private boolean succeedAt(int start) {\n",
+  "  // what succeed() does for a rule without a node\n",
+  "  if (start >= lastFail)\n",
+  "    lastFail = -1;\n",
+  "  return true;\n",
+  "}\n",
+  "\n",
+  "private boolean failAt(int start) {\n",
+  "  // what fail() does for a rule without a node\n",
+  "  if (lastFail < start)\n",
+  "    lastFail = start;\n",
+  "  return false;\n",
+  "}\n",
+  };
+  
+  protected static final String[] CLIMB = {
+  "private Node wrap(String name, Node parent, int offset, int outstart) {\n",
+  "  // add the node of a rule that matched from offset, as if it had\n",
+  "  // been created before the nodes from outstart on\n",
+  "  ensureOut();\n",
+  "  System.arraycopy(out, outstart, out, outstart+1, outpos-outstart);\n",
+  "  outpos++;\n",
+  "  Node node = new Node(name, parent, offset);\n",
+  "  out[outstart] = node;\n",
+  "  for (int i = outstart+1; i < outpos; i++) {\n",
+  "    if (out[i].parent == parent)\n",
+  "      out[i].parent = node;\n",
+  "  }\n",
+  "  return node;\n",
+  "}\n",
+  };
+  
+  protected static final String[] LITERAL_AT = {
+  "private int literalAt(int p, String literal) {\n",
+  "  // end of literal if it is at p, otherwise -1\n",
+  "  int n = literal.length();\n",
+  "  if (p + n > inend)\n",
+  "    return -1;\n",
+  "  for (int i = 0; i < n; i++) {\n",
+  "    if (in[p+i] != literal.charAt(i))\n",
+  "      return -1;\n",
+  "  }\n",
+  "  return p + n;\n",
+  "}\n",
+  };
+  
+  protected static final String[] PACK = {
+  "private Node[] pack() {\n",
+  "  int n = compact();\n",
+  "  // hand back out itself, without the removed nodes and those of\n",
+  "  // failed attempts after the tree; the next parse gets a new out\n",
+  "  for (int i = n; i < out.length && out[i] != null; i++)\n",
+  "    out[i] = null;\n",
+  "  outpos = n;\n",
+  "  treeSize = n;\n",
+  "  return out;\n",
+  "}\n",
+  };
+  
+  protected static final String[] ARENA = {
+  "private Node[] arena = new Node[INITIAL_OUT_SIZE];\n",
+  "private int arenaSize;\n",
+  "\n",
+  "/**\n",
+  " * Give the nodes of a tree returned by parseLanguage back to the\n",
+  " * parser, which uses them again in later parses. The tree must not\n",
+  " * be used after this.\n",
+  " */\n",
+  "public void release(Node[] tree) {\n",
+  "  for (int i = 0; i < tree.length && tree[i] != null; i++) {\n",
+  "    toArena(tree[i]);\n",
+  "    tree[i] = null;\n",
+  "  }\n",
+  "  // the tree is the old out, so take it back as the work array\n",
+  "  if (out == null)\n",
+  "    out = tree;\n",
+  "}\n",
+  "\n",
+  "private void toArena(Node node) {\n",
+  "  if (arenaSize == arena.length) {\n",
+  "    Node[] tmp = new Node[arenaSize<<1];\n",
+  "    System.arraycopy(arena,0,tmp,0,arenaSize);\n",
+  "    arena = tmp;\n",
+  "  }\n",
+  "  arena[arenaSize++] = node;\n",
+  "}\n",
+  "\n",
+  "private Node newNode(String name, Node parent, int offset) {\n",
+  "  if (arenaSize == 0)\n",
+  "    return new Node(name, parent, offset);\n",
+  "  Node node = arena[--arenaSize];\n",
+  "  arena[arenaSize] = null;\n",
+  "  node.name = name;\n",
+  "  node.parent = parent;\n",
+  "  node.offset = offset;\n",
+  "  node.length = 0;\n",
+  "  node.child = null;\n",
+  "  node.next = null;\n",
+  "  node.success = false;\n",
+  "  node.remove = false;\n",
+  "  node.nextout = 0;\n",
+  "  return node;\n",
+  "}\n",
+  "\n",
+  "private Node[] arenaOut() {\n",
+  "  // keep the work array between parses, emptied into the arena\n",
+  "  if (out == null)\n",
+  "    return new Node[INITIAL_OUT_SIZE];\n",
+  "  recycle(0);\n",
+  "  return out;\n",
+  "}\n",
+  "\n",
+  "private void recycle(int from) {\n",
+  "  // out is filled from 0 up, so the first null ends the nodes\n",
+  "  for (int i = from; i < out.length && out[i] != null; i++) {\n",
+  "    toArena(out[i]);\n",
+  "    out[i] = null;\n",
+  "  }\n",
+  "}\n",
+  "\n",
+  "private Node[] pack() {\n",
+  "  int n = compact();\n",
+  "  // the removed nodes and those of failed attempts\n",
+  "  recycle(n);\n",
+  "  // hand back out itself; it is the work array again once released\n",
+  "  Node[] tree = out;\n",
+  "  out = null;\n",
+  "  outpos = 0;\n",
+  "  treeSize = n;\n",
+  "  return tree;\n",
+  "}\n",
+  };
+  
+  protected static final String[] DEPTH = {
+  "private int depth;\n",
+  "\n",
+  "private static class TooDeep extends RuntimeException {\n",
+  "  public Throwable fillInStackTrace() {\n",
+  "    // thrown to abandon the parse, so no stack trace needed\n",
+  "    return this;\n",
+  "  }\n",
+  "}\n",
+  "\n",
+  "private void tooDeep() {\n",
+  "  throw new TooDeep();\n",
+  "}\n",
+  "\n",
+  "private void nestingError() {\n",
+  "  if (errors == null)\n",
+  "    errors = new LinkedList();\n",
+  "  int pos = inpos;\n",
+  "  if (pos >= in.length)\n",
+  "    pos = in.length - 1;\n",
+  "  errors.add(\"Input nested too deeply at line \"+countLines(pos)+\":\");\n",
+  "  errors.add(collectErrorString(pos));\n",
+  "  errors.add(indicateCharPos(pos));\n",
+  "  errorCount++;\n",
+  "}\n",
+  };
+  
+  protected static final String[] LIMITS = {
+  "// rule entries between checks of the other limits\n",
+  "private static final int LIMIT_INTERVAL = 1024;\n",
+  "\n",
+  "private long maxSteps;\n",
+  "private long timeout;\n",
+  "private int maxNodes;\n",
+  "private long deadline;\n",
+  "// maxNodes, or no limit\n",
+  "private int nodeCap;\n",
+  "// rule entries left before checkLimits(), counted down from chunk\n",
+  "private long steps;\n",
+  "private long chunk;\n",
+  "private long stepsUsed;\n",
+  "\n",
+  "/**\n",
+  " * Fail a parse that enters rules more than steps times.\n",
+  " * 0, the default, means no limit.\n",
+  " */\n",
+  "public void setMaxSteps(long steps) {\n",
+  "  maxSteps = steps;\n",
+  "}\n",
+  "\n",
+  "/**\n",
+  " * Fail a parse that takes longer than millis milliseconds.\n",
+  " * 0, the default, means no limit.\n",
+  " */\n",
+  "public void setTimeout(long millis) {\n",
+  "  timeout = millis * 1000000L;\n",
+  "}\n",
+  "\n",
+  "/**\n",
+  " * Fail a parse as soon as it holds more than nodes nodes: its\n",
+  " * tree so far, with those ~n will remove, and the node of a rule\n",
+  " * being tried. 0, the default, means no limit.\n",
+  " */\n",
+  "public void setMaxNodes(int nodes) {\n",
+  "  maxNodes = nodes;\n",
+  "}\n",
+  "\n",
+  "private static class OverLimit extends RuntimeException {\n",
+  "  OverLimit(String message) {\n",
+  "    super(message);\n",
+  "  }\n",
+  "  public Throwable fillInStackTrace() {\n",
+  "    // thrown to abandon the parse, so no stack trace needed\n",
+  "    return this;\n",
+  "  }\n",
+  "}\n",
+  "\n",
+  "private void resetLimits() {\n",
+  "  stepsUsed = 0;\n",
+  "  chunk = maxSteps > 0 && maxSteps < LIMIT_INTERVAL ? maxSteps : LIMIT_INTERVAL;\n",
+  "  steps = chunk;\n",
+  "  deadline = System.nanoTime() + timeout;\n",
+  "  nodeCap = maxNodes > 0 ? maxNodes : Integer.MAX_VALUE;\n",
+  "}\n",
+  "\n",
+  "// called when steps runs out, so the rest cost nothing per rule\n",
+  "private void checkLimits() {\n",
+  "  stepsUsed += chunk - steps;\n",
+  "  if (maxSteps > 0 && stepsUsed > maxSteps)\n",
+  "    throw new OverLimit(\"Parse step limit exceeded\");\n",
+  "  if (timeout > 0 && System.nanoTime() - deadline > 0)\n",
+  "    throw new OverLimit(\"Parse deadline passed\");\n",
+  "  if (Thread.currentThread().isInterrupted())\n",
+  "    throw new OverLimit(\"Parse interrupted\");\n",
+  "  chunk = maxSteps > 0 && maxSteps - stepsUsed < LIMIT_INTERVAL ? maxSteps - stepsUsed : LIMIT_INTERVAL;\n",
+  "  steps = chunk;\n",
+  "}\n",
+  "\n",
+  "// called before count nodes are added to out\n",
+  "private void checkNodes(int count) {\n",
+  "  if (outpos + count > nodeCap)\n",
+  "    throw new OverLimit(\"Parse node limit exceeded\");\n",
+  "}\n",
+  "\n",
+  "private void limitError(String message) {\n",
+  "  if (errors == null)\n",
+  "    errors = new LinkedList();\n",
+  "  int pos = inpos;\n",
+  "  if (pos >= in.length)\n",
+  "    pos = in.length - 1;\n",
+  "  errors.add(message+\" at line \"+countLines(pos)+\":\");\n",
+  "  errors.add(collectErrorString(pos));\n",
+  "  errors.add(indicateCharPos(pos));\n",
+  "  errorCount++;\n",
+  "}\n",
+  };
+  
+  protected static final String[] MEMO = {
+  "// the last rule and position tried in each slot, so a rule tried\n",
+  "// again at a position is counted, and the counts by rule\n",
+  "private static final int MEMO_SEEN = 1024;\n",
+  "private long[] memoSeen = new long[MEMO_SEEN];\n",
+  "private int[] memoTries = new int[MEMO_RULES.length];\n",
+  "// for each memoized rule, its result at each position: 0 if not\n",
+  "// tried, -1 if it failed or 1 + where its nodes are in memoNodes\n",
+  "private int[][] memoAt = new int[MEMO_RULES.length][];\n",
+  "private int memoStart;\n",
+  "// the nodes of each remembered match with the index of each one's\n",
+  "// parent in the match; the first node's parent is the caller's, so\n",
+  "// its slot holds the number of nodes instead\n",
+  "private Node[] memoNodes = new Node[64];\n",
+  "private int[] memoParents = new int[64];\n",
+  "private int memoSize;\n",
+  "private int[] memoStack = new int[16];\n",
+  "\n",
+  "private void resetMemo() {\n",
+  "  java.util.Arrays.fill(memoSeen, -1);\n",
+  "  java.util.Arrays.fill(memoTries, 0);\n",
+  "  java.util.Arrays.fill(memoAt, null);\n",
+  "  java.util.Arrays.fill(memoNodes, 0, memoSize, null);\n",
+  "  memoSize = 0;\n",
+  "  memoStart = inpos;\n",
+  "  // the first MEMO_EAGER rules are memoized from the start\n",
+  "  for (int i = 0; i < MEMO_EAGER; i++)\n",
+  "    memoAt[i] = new int[inend - memoStart + 1];\n",
+  "}\n",
+  "\n",
+  "/**\n",
+  " * Returns the names of the rules the last parse memoized, from the\n",
+  " * start or once tried again at a position MEMO_THRESHOLD times.\n",
+  " */\n",
+  "public String[] getMemoized() {\n",
+  "  List<String> names = new LinkedList<String>();\n",
+  "  for (int i = 0; i < MEMO_RULES.length; i++) {\n",
+  "    if (memoAt[i] != null)\n",
+  "      names.add(MEMO_RULES[i]);\n",
+  "  }\n",
+  "  return names.toArray(new String[names.size()]);\n",
+  "}\n",
+  "\n",
+  "private boolean sameMemo(int rule, String name, Node parent) {\n",
+  "  if (sameRule(name, parent))\n",
+  "    return true;\n",
+  "  int[] at = memoAt[rule];\n",
+  "  if (at == null) {\n",
+  "    long key = (long) inpos * MEMO_RULES.length + rule;\n",
+  "    int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 54);\n",
+  "    if (memoSeen[slot] != key)\n",
+  "      memoSeen[slot] = key;\n",
+  "    else if (++memoTries[rule] >= MEMO_THRESHOLD)\n",
+  "      memoAt[rule] = new int[inend - memoStart + 1];\n",
+  "    return false;\n",
+  "  }\n",
+  "  int n = at[inpos - memoStart];\n",
+  "  if (n == 0)\n",
+  "    return false;\n",
+  "  if (n > 0) {\n",
+  "    recallNodes(n - 1, parent);\n",
+  "    return true;\n",
+  "  }\n",
+  "  // leave a failed node in the slot, as a failed try would\n",
+  "  Node node = out[outpos];\n",
+  "  if (node == null || node.success)\n",
+  "    out[outpos] = new Node(name, parent, inpos);\n",
+  "  else {\n",
+  "    node.name = name;\n",
+  "    node.parent = parent;\n",
+  "    node.offset = inpos;\n",
+  "  }\n",
+  "  if (lastFail < inpos)\n",
+  "    lastFail = inpos;\n",
+  "  return true;\n",
+  "}\n",
+  "\n",
+  "private boolean succeedMemo(int rule, Node node, int outstart) {\n",
+  "  succeed(node);\n",
+  "  int[] at = memoAt[rule];\n",
+  "  if (at != null)\n",
+  "    at[node.offset - memoStart] = remember(outstart) + 1;\n",
+  "  return true;\n",
+  "}\n",
+  "\n",
+  "private boolean failMemo(int rule, Node node, int outstart) {\n",
+  "  int[] at = memoAt[rule];\n",
+  "  if (at != null)\n",
+  "    at[node.offset - memoStart] = -1;\n",
+  "  return fail(node, outstart);\n",
+  "}\n",
+  "\n",
+  "private int remember(int outstart) {\n",
+  "  // the nodes are never changed once they succeed, so keep them\n",
+  "  // and how they nest, and copy them when the match is recalled\n",
+  "  int count = outpos - outstart;\n",
+  "  if (memoSize + count > memoNodes.length) {\n",
+  "    int size = Math.max(memoNodes.length << 1, memoSize + count);\n",
+  "    Node[] tmp = new Node[size];\n",
+  "    System.arraycopy(memoNodes, 0, tmp, 0, memoSize);\n",
+  "    memoNodes = tmp;\n",
+  "    int[] parents = new int[size];\n",
+  "    System.arraycopy(memoParents, 0, parents, 0, memoSize);\n",
+  "    memoParents = parents;\n",
+  "  }\n",
+  "  int first = memoSize;\n",
+  "  memoNodes[first] = out[outstart];\n",
+  "  memoParents[first] = count;\n",
+  "  // parents come before their children, so the parent of each node\n",
+  "  // is on the stack of the ancestors of the one before it\n",
+  "  int top = 0;\n",
+  "  memoStack[0] = 0;\n",
+  "  for (int i = 1; i < count; i++) {\n",
+  "    Node node = out[outstart + i];\n",
+  "    while (top > 0 && out[outstart + memoStack[top]] != node.parent)\n",
+  "      top--;\n",
+  "    memoNodes[first + i] = node;\n",
+  "    memoParents[first + i] = memoStack[top];\n",
+  "    if (++top == memoStack.length) {\n",
+  "      int[] tmp = new int[top << 1];\n",
+  "      System.arraycopy(memoStack, 0, tmp, 0, top);\n",
+  "      memoStack = tmp;\n",
+  "    }\n",
+  "    memoStack[top] = i;\n",
+  "  }\n",
+  "  memoSize += count;\n",
+  "  return first;\n",
+  "}\n",
+  "\n",
+  "private void recallNodes(int first, Node parent) {\n",
+  "  int count = memoParents[first];\n",
+  "  if (outpos + count > out.length) {\n",
+  "    Node[] tmp = new Node[Math.max(out.length << 1, outpos + count)];\n",
+  "    System.arraycopy(out, 0, tmp, 0, outpos);\n",
+  "    out = tmp;\n",
+  "  }\n",
+  "  int base = outpos;\n",
+  "  for (int i = 0; i < count; i++) {\n",
+  "    Node old = memoNodes[first + i];\n",
+  "    Node node = new Node(old.name, i == 0 ? parent : out[base + memoParents[first + i]], old.offset);\n",
+  "    node.length = old.length;\n",
+  "    node.success = true;\n",
+  "    node.remove = old.remove;\n",
+  "    node.nextout = base + i + 1;\n",
+  "    out[base + i] = node;\n",
+  "  }\n",
+  "  // a node's nodes end where those of its last descendant do\n",
+  "  for (int i = count - 1; i > 0; i--) {\n",
+  "    Node node = out[base + i];\n",
+  "    if (node.parent.nextout < node.nextout)\n",
+  "      node.parent.nextout = node.nextout;\n",
+  "  }\n",
+  "  outpos = base + count;\n",
+  "  Node root = out[base];\n",
+  "  inpos = root.offset + root.length;\n",
+  "  if (root.offset >= lastFail)\n",
+  "    lastFail = -1;\n",
+  "}\n",
+  };
+  
+  protected static final String[] INDENT_MEMO = {
+  "// the indentation a rule was tried under and the one it left,\n",
+  "// by the out slot of its node\n",
+  "private int[] indentIn = new int[0];\n",
+  "private int[] indentOut = new int[0];\n",
+  "\n",
+  "private boolean sameIndent(String name, Node parent) {\n",
+  "  // a result is only good for the indentation it was found under\n",
+  "  ensureOut();\n",
+  "  int slot = outpos;\n",
+  "  if (slot < indentIn.length && indentIn[slot] != indentState)\n",
+  "    return false;\n",
+  "  if (!sameRule(name, parent))\n",
+  "    return false;\n",
+  "  if (out[slot].success)\n",
+  "    indentState = indentOut[slot];\n",
+  "  return true;\n",
+  "}\n",
+  "\n",
+  "private Node attemptIndent(String name, Node parent) {\n",
+  "  int slot = outpos;\n",
+  "  if (slot >= indentIn.length) {\n",
+  "    int[] tmp = new int[out.length];\n",
+  "    System.arraycopy(indentIn, 0, tmp, 0, indentIn.length);\n",
+  "    indentIn = tmp;\n",
+  "    tmp = new int[out.length];\n",
+  "    System.arraycopy(indentOut, 0, tmp, 0, indentOut.length);\n",
+  "    indentOut = tmp;\n",
+  "  }\n",
+  "  indentIn[slot] = indentState;\n",
+  "  return attempt(name, parent);\n",
+  "}\n",
+  "\n",
+  "private boolean succeedIndent(Node rule, int outstart) {\n",
+  "  indentOut[outstart] = indentState;\n",
+  "  return succeed(rule);\n",
+  "}\n",
+  "\n",
+  "private boolean failIndent(Node rule, int outstart) {\n",
+  "  indentState = indentIn[outstart];\n",
+  "  return fail(rule, outstart);\n",
+  "}\n",
+  };
+  
+  protected static final String[] NO_CASE = {
+  "private int noCaseAt(int p, String literal) {\n",
+  "  // end of literal if it is at p ignoring case, otherwise -1;\n",
+  "  // literal is folded, and ASCII letters are compared by setting\n",
+  "  // the lower case bit, so only other chars need folding\n",
+  "  int n = literal.length();\n",
+  "  if (p + n > inend)\n",
+  "    return -1;\n",
+  "  for (int i = 0; i < n; i++) {\n",
+  "    char c = in[p+i];\n",
+  "    char l = literal.charAt(i);\n",
+  "    if (c == l)\n",
+  "      continue;\n",
+  "    if (c < 128) {\n",
+  "      if ((c | 0x20) != l || l < 'a' || l > 'z')\n",
+  "        return -1;\n",
+  "    }\n",
+  "    else if (Character.toLowerCase(Character.toUpperCase(c)) != l)\n",
+  "      return -1;\n",
+  "  }\n",
+  "  return p + n;\n",
+  "}\n",
+  "\n",
+  "private boolean matchNoCase(String literal) {\n",
+  "  int end = noCaseAt(inpos, literal);\n",
+  "  if (end < 0)\n",
+  "    return false;\n",
+  "  inpos = end;\n",
+  "  return true;\n",
+  "}\n",
+  };
+  
+  protected static final String[] CLASS_TABLE = {
+  "private static int classEnd(char[] table, char[] in, int p, int inend) {\n",
+  "  // end of the code point at p if it is in the class, otherwise -1\n",
+  "  if (p == inend)\n",
+  "    return -1;\n",
+  "  int c = in[p++];\n",
+  "  if (Character.isHighSurrogate((char) c) && p < inend && Character.isLowSurrogate(in[p]))\n",
+  "    c = Character.toCodePoint((char) c, in[p++]);\n",
+  "  return (table[table[c >> 8] + (c >> 4 & 15)] >>> (c & 15) & 1) != 0 ? p : -1;\n",
+  "}\n",
+  "\n",
+  "private boolean matchClass(char[] table) {\n",
+  "  int end = classEnd(table, in, inpos, inend);\n",
+  "  if (end < 0)\n",
+  "    return false;\n",
+  "  inpos = end;\n",
+  "  return true;\n",
+  "}\n",
+  };
+  
+  protected static final String[] TOKENS = {
+  "// the end of each token rule's match from each position, kept\n",
+  "// as its length plus 1, -1 if it doesn't match or 0 if not tried\n",
+  "private int[][] tokenEnds = new int[TOKEN_RULES][];\n",
+  "private int tokenStart;\n",
+  "private static final int UNTRIED = -2;\n",
+  "\n",
+  "private void resetTokens() {\n",
+  "  java.util.Arrays.fill(tokenEnds, null);\n",
+  "  tokenStart = inpos;\n",
+  "}\n",
+  "\n",
+  "private int tokenEnd(int kind) {\n",
+  "  int[] ends = tokenEnds[kind];\n",
+  "  if (ends == null)\n",
+  "    ends = tokenEnds[kind] = new int[inend - tokenStart + 1];\n",
+  "  int n = ends[inpos - tokenStart];\n",
+  "  return n == 0 ? UNTRIED : n < 0 ? -1 : inpos + n - 1;\n",
+  "}\n",
+  "\n",
+  "private int setTokenEnd(int kind, int end) {\n",
+  "  tokenEnds[kind][inpos - tokenStart] = end < 0 ? -1 : end - inpos + 1;\n",
+  "  return end;\n",
+  "}\n",
+  };
+  
+  protected static final String[] SCAN_UNTIL = {
+  "private int scanUntil(String literal) {\n",
+  "  // first position of literal at or after inpos, or inend\n",
+  "  char first = literal.charAt(0);\n",
+  "  int n = literal.length();\n",
+  "  for (int p = inpos, last = inend - n; p <= last; p++) {\n",
+  "    if (in[p] == first) {\n",
+  "      int i = 1;\n",
+  "      while (i < n && in[p+i] == literal.charAt(i))\n",
+  "        i++;\n",
+  "      if (i == n)\n",
+  "        return p;\n",
+  "    }\n",
+  "  }\n",
+  "  return inend;\n",
+  "}\n",
+  };
+  
+  protected static final String[] SKIP_TABLE = {
+  "private int scanUntil(String literal, int[] skip) {\n",
+  "  // Boyer-Moore-Horspool, skip is indexed by the low byte of a char\n",
+  "  int n = literal.length();\n",
+  "  char lastChar = literal.charAt(n-1);\n",
+  "  for (int p = inpos, last = inend - n; p <= last; ) {\n",
+  "    char c = in[p+n-1];\n",
+  "    if (c == lastChar) {\n",
+  "      int i = 0;\n",
+  "      while (i < n-1 && in[p+i] == literal.charAt(i))\n",
+  "        i++;\n",
+  "      if (i == n-1)\n",
+  "        return p;\n",
+  "    }\n",
+  "    p += skip[c & 0xff];\n",
+  "  }\n",
+  "  return inend;\n",
+  "}\n",
+  "\n",
+  "private static int[] skipTable(String literal) {\n",
+  "  int n = literal.length();\n",
+  "  int[] skip = new int[256];\n",
+  "  java.util.Arrays.fill(skip, n);\n",
+  "  for (int i = 0; i < n-1; i++)\n",
+  "    skip[literal.charAt(i) & 0xff] = n-1-i;\n",
+  "  return skip;\n",
+  "}\n",
+  };
+  
   protected static final String[] WS = {
   "protected boolean ruleWS(Node parent) {\n",
-  "  rule$WS(parent);\n",
+  "  skipWS();\n",
   "  return true;\n",
   "}\n",
+  "\n",
+  "// where the whitespace from a few recent positions ends, so\n",
+  "// skipping it again after backtracking doesn't scan it again\n",
+  "private static final int WS_CACHE = 4;\n",
+  "private int[] wsFrom = new int[WS_CACHE];\n",
+  "private int[] wsTo = new int[WS_CACHE];\n",
+  "\n",
+  "private void skipWS() {\n",
+  "  int slot = inpos & (WS_CACHE - 1);\n",
+  "  if (wsFrom[slot] == inpos) {\n",
+  "    inpos = wsTo[slot];\n",
+  "    return;\n",
+  "  }\n",
+  "  int p = inpos;\n",
+  "  while (p < inend) {\n",
+  "    char c = in[p];\n",
+  "    // ' ', '\\t', '\\n' and '\\r' are bits of the mask\n",
+  "    if (c > ' ' || (0x100002600L >>> c & 1) == 0)\n",
+  "      break;\n",
+  "    p++;\n",
+  "  }\n",
+  "  wsFrom[slot] = inpos;\n",
+  "  wsTo[slot] = p;\n",
+  "  inpos = p;\n",
+  "}\n",
+  "\n",
+  "private void resetWS() {\n",
+  "  java.util.Arrays.fill(wsFrom, -1);\n",
+  "}\n",
+  };
+
+  protected static final String[] PROFILE = {
+  "private long[] profCalls = new long[PROFILE_RULES.length];\n",
+  "private long[] profSuccesses = new long[PROFILE_RULES.length];\n",
+  "private long[] profFailures = new long[PROFILE_RULES.length];\n",
+  "private long[] profMemoHits = new long[PROFILE_RULES.length];\n",
+  "private long[] profChars = new long[PROFILE_RULES.length];\n",
+  "private long[] profNanos = new long[PROFILE_RULES.length];\n",
+  "private long[] profSelfNanos = new long[PROFILE_RULES.length];\n",
+  "private long profChildNanos;\n",
+  "private long[] profRetries = new long[PROFILE_RULES.length];\n",
+  "private long[] profAlts = new long[PROFILE_ALTS[PROFILE_CHOICES.length]];\n",
+  "// rule and position of recent calls, direct mapped, to count retries\n",
+  "private long[] profSeen = new long[1024];\n",
+  "\n",
+  "private void resetRetries() {\n",
+  "  java.util.Arrays.fill(profSeen, -1);\n",
+  "}\n",
+  "\n",
+  "private void profileRule(int rule, boolean match, int at, int chars, long nanos, long saveChild) {\n",
+  "  profCalls[rule]++;\n",
+  "  long key = (long) at * PROFILE_RULES.length + rule;\n",
+  "  int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 54);\n",
+  "  if (profSeen[slot] == key)\n",
+  "    profRetries[rule]++;\n",
+  "  else\n",
+  "    profSeen[slot] = key;\n",
+  "  if (match) {\n",
+  "    profSuccesses[rule]++;\n",
+  "    profChars[rule] += chars;\n",
+  "  }\n",
+  "  else\n",
+  "    profFailures[rule]++;\n",
+  "  profNanos[rule] += nanos;\n",
+  "  profSelfNanos[rule] += nanos - profChildNanos;\n",
+  "  profChildNanos = saveChild + nanos;\n",
+  "}\n",
+  "\n",
+  "/**\n",
+  " * Returns a table of rule statistics accumulated over all parses\n",
+  " * since this parser was created or resetProfile() was called,\n",
+  " * one line per rule ordered by time spent in the rule itself.\n",
+  " * Times are in microseconds; total includes called rules.\n",
+  " * Retries are calls at a position the rule was recently called at.\n",
+  " * A second table has the number of times each alternative matched\n",
+  " * of the choices that can be reordered, named rule.n for the nth\n",
+  " * choice of the rule.\n",
+  " */\n",
+  "public String getProfile() {\n",
+  "  Integer[] order = new Integer[PROFILE_RULES.length];\n",
+  "  for (int i = 0; i < order.length; i++)\n",
+  "    order[i] = i;\n",
+  "  java.util.Arrays.sort(order, new java.util.Comparator<Integer>() {\n",
+  "    public int compare(Integer a, Integer b) {\n",
+  "      return Long.compare(profSelfNanos[b], profSelfNanos[a]);\n",
+  "    }\n",
+  "  });\n",
+  "  StringBuilder sb = new StringBuilder();\n",
+  "  sb.append(String.format(\"%-24s %12s %12s %12s %12s %12s %12s %12s %12s%n\",\n",
+  "    \"rule\", \"calls\", \"successes\", \"failures\", \"memo\", \"retries\", \"chars\", \"total-us\", \"self-us\"));\n",
+  "  for (int i : order) {\n",
+  "    if (profCalls[i] == 0 && profMemoHits[i] == 0)\n",
+  "      continue;\n",
+  "    sb.append(String.format(\"%-24s %12d %12d %12d %12d %12d %12d %12d %12d%n\",\n",
+  "      PROFILE_RULES[i], profCalls[i], profSuccesses[i], profFailures[i], profMemoHits[i],\n",
+  "      profRetries[i], profChars[i], profNanos[i] / 1000, profSelfNanos[i] / 1000));\n",
+  "  }\n",
+  "  if (PROFILE_CHOICES.length > 0) {\n",
+  "    sb.append(String.format(\"%nchoice%n\"));\n",
+  "    for (int i = 0; i < PROFILE_CHOICES.length; i++) {\n",
+  "      sb.append(String.format(\"%-24s\", PROFILE_CHOICES[i]));\n",
+  "      for (int j = PROFILE_ALTS[i]; j < PROFILE_ALTS[i+1]; j++)\n",
+  "        sb.append(String.format(\" %12d\", profAlts[j]));\n",
+  "      sb.append(String.format(\"%n\"));\n",
+  "    }\n",
+  "  }\n",
+  "  return sb.toString();\n",
+  "}\n",
+  "\n",
+  "/**\n",
+  " * Clears the statistics reported by getProfile().\n",
+  " */\n",
+  "public void resetProfile() {\n",
+  "  for (int i = 0; i < PROFILE_RULES.length; i++) {\n",
+  "    profCalls[i] = profSuccesses[i] = profFailures[i] = profMemoHits[i] = 0;\n",
+  "    profChars[i] = profNanos[i] = profSelfNanos[i] = profRetries[i] = 0;\n",
+  "  }\n",
+  "  java.util.Arrays.fill(profAlts, 0);\n",
+  "  profChildNanos = 0;\n",
+  "}\n",
+  };
+
+  protected static final String[] JFR_PARSE = {
+  "@jdk.jfr.Name(\"org.genantics.peggen.Parse\")\n",
+  "@jdk.jfr.Label(\"Parse\")\n",
+  "@jdk.jfr.Category(\"Peggen\")\n",
+  "@jdk.jfr.Description(\"A call of parseLanguage\")\n",
+  "static class ParseEvent extends jdk.jfr.Event {\n",
+  "  @jdk.jfr.Label(\"Parser\")\n",
+  "  Class<?> parser;\n",
+  "  @jdk.jfr.Label(\"Input Length\")\n",
+  "  int inputLength;\n",
+  "  @jdk.jfr.Label(\"Node Count\")\n",
+  "  int nodeCount;\n",
+  "  @jdk.jfr.Label(\"Out High-Water Mark\")\n",
+  "  @jdk.jfr.Description(\"Most entries of the out array in use at once\")\n",
+  "  int outHighWater;\n",
+  "  @jdk.jfr.Label(\"Error Count\")\n",
+  "  int errorCount;\n",
+  "}\n",
+  "\n",
+  "private int highWater() {\n",
+  "  // out is filled from the bottom, so the high-water mark is the first null\n",
+  "  int lo = 0;\n",
+  "  int hi = out.length;\n",
+  "  while (lo < hi) {\n",
+  "    int mid = (lo + hi) >>> 1;\n",
+  "    if (out[mid] != null)\n",
+  "      lo = mid + 1;\n",
+  "    else\n",
+  "      hi = mid;\n",
+  "  }\n",
+  "  return lo;\n",
+  "}\n",
+  "\n",
+  "private Node[] endParse(ParseEvent event, int length, int errorMark, int highWater, Node[] tree) {\n",
+  "  event.end();\n",
+  "  if (event.shouldCommit()) {\n",
+  "    event.parser = getClass();\n",
+  "    event.inputLength = length;\n",
+  "    event.nodeCount = tree == null ? 0 : treeSize;\n",
+  "    event.outHighWater = highWater;\n",
+  "    event.errorCount = errorCount - errorMark;\n",
+  "    event.commit();\n",
+  "  }\n",
+  "  return tree;\n",
+  "}\n",
+  };
+  
+  protected static final String[] JFR_RULE = {
+  "@jdk.jfr.Name(\"org.genantics.peggen.Rule\")\n",
+  "@jdk.jfr.Label(\"Slow Rule\")\n",
+  "@jdk.jfr.Category(\"Peggen\")\n",
+  "@jdk.jfr.Description(\"A rule invocation that took longer than the threshold\")\n",
+  "@jdk.jfr.Threshold(\"10 ms\")\n",
+  "static class RuleEvent extends jdk.jfr.Event {\n",
+  "  @jdk.jfr.Label(\"Rule\")\n",
+  "  String rule;\n",
+  "  @jdk.jfr.Label(\"Offset\")\n",
+  "  int offset;\n",
+  "  @jdk.jfr.Label(\"Length\")\n",
+  "  int length;\n",
+  "  @jdk.jfr.Label(\"Success\")\n",
+  "  boolean success;\n",
+  "}\n",
   };
 
 	protected static final String[] PLATE = new String[] {
-    "protected int[] indentStack = new int[1];\n",
-    "protected int indentIndex = 0;\n",
-    "protected int curIndent = 0;\n",
-    "protected int indentPos = 0;\n",
     "protected int tabSpaces = 8;\n",
+    "// the indentation stack is a chain of levels, each with its\n",
+    "// width and the level below it, so a level number is the whole\n",
+    "// stack and backtracking can put it back by assignment\n",
+    "protected int[] indentWidth = new int[8];\n",
+    "protected int[] indentOuter = new int[8];\n",
+    "protected int indentLevels = 1;\n",
+    "protected int indentState = 0;\n",
+    "// the first non-blank position of each line after a newline,\n",
+    "// and its indentation\n",
+    "protected int[] lineStart = new int[16];\n",
+    "protected int[] lineIndent = new int[16];\n",
+    "protected int lineCount = 0;\n",
     "\n",
     "protected boolean rule$Indent(Node parent) {\n",
-    "  if (inpos == indentPos && curIndent > indentStack[indentIndex]) {\n",
-    "  	if (indentIndex == indentStack.length - 1) {\n",
-    "  	  int[] tmp = new int[indentStack.length * 2];\n",
-    "  	  System.arraycopy(indentStack, 0, tmp, 0, indentIndex+1);\n",
-    "  	  indentStack = tmp;\n",
-    "  	}\n",
-    "  	indentStack[++indentIndex] = curIndent;\n",
-    "  	return true;\n",
+    "  int width = indentAt(inpos);\n",
+    "  if (width > indentWidth[indentState]) {\n",
+    "    indentState = pushIndent(width);\n",
+    "    return true;\n",
     "  }\n",
     "  return false;\n",
     "}\n",
     "\n",
     "protected boolean rule$Outdent(Node parent) {\n",
-    "	if (inpos == indentPos && curIndent < indentStack[indentIndex]\n",
-    "	    && curIndent <= indentStack[indentIndex-1]) {\n",
-    "	  indentIndex--;\n",
+    "	int width = indentAt(inpos);\n",
+    "	if (width >= 0 && width < indentWidth[indentState]\n",
+    "	    && width <= indentWidth[indentOuter[indentState]]) {\n",
+    "	  indentState = indentOuter[indentState];\n",
     "	  return true;\n",
     "	}\n",
     "	return false;\n",
     "}\n",
     "\n",
     "protected boolean rule$WS(Node parent) {\n",
-    "  int start = -1;\n",
     "  int savePos = inpos;\n",
-    "  boolean match = true;\n",
-    "  while (match) {\n",
-    "    while(matchSet(\" \\t\\r\"))\n",
-    "  	  ;\n",
-    "    if (match = matchChar('\\n'))\n",
-    "  	  start = inpos;\n",
+    "  // ' ', '\\t', '\\n' and '\\r' are bits of the mask\n",
+    "  while (inpos < inend && in[inpos] <= ' ' && (0x100002600L >>> in[inpos] & 1) != 0)\n",
+    "    inpos++;\n",
+    "  return savePos != inpos;\n",
+    "}\n",
+    "\n",
+    "private int indentAt(int pos) {\n",
+    "  // the indentation of the line pos starts, or -1\n",
+    "  int lo = 0;\n",
+    "  int hi = lineCount;\n",
+    "  while (lo < hi) {\n",
+    "    int mid = (lo + hi) >>> 1;\n",
+    "    if (lineStart[mid] < pos)\n",
+    "      lo = mid + 1;\n",
+    "    else\n",
+    "      hi = mid;\n",
+    "  }\n",
+    "  return lo < lineCount && lineStart[lo] == pos ? lineIndent[lo] : -1;\n",
+    "}\n",
+    "\n",
+    "private int pushIndent(int width) {\n",
+    "  // a push repeated after backtracking gets the same level back,\n",
+    "  // so memoized rules see the same stack\n",
+    "  int last = indentLevels - 1;\n",
+    "  if (last > 0 && indentOuter[last] == indentState && indentWidth[last] == width)\n",
+    "    return last;\n",
+    "  if (indentLevels == indentWidth.length) {\n",
+    "    int[] tmp = new int[indentLevels * 2];\n",
+    "    System.arraycopy(indentWidth, 0, tmp, 0, indentLevels);\n",
+    "    indentWidth = tmp;\n",
+    "    tmp = new int[indentLevels * 2];\n",
+    "    System.arraycopy(indentOuter, 0, tmp, 0, indentLevels);\n",
+    "    indentOuter = tmp;\n",
     "  }\n",
-    "  if (start >= 0) {\n",
-    "    curIndent = 0;\n",
-    "  	for (int i = start; i < inpos; i++) {\n",
-    "  	  if (in[i] == ' ')\n",
-    "  	    curIndent++;\n",
-    "  	  else if (in[i] == '\\t')\n",
-    "  	  	curIndent += tabSpaces;\n",
-    "  	}\n",
-    "  	indentPos = inpos;\n",
+    "  indentWidth[indentLevels] = width;\n",
+    "  indentOuter[indentLevels] = indentState;\n",
+    "  return indentLevels++;\n",
+    "}\n",
+    "\n",
+    "private void resetIndent() {\n",
+    "  // measure every line once, rather than each time $WS crosses it\n",
+    "  indentLevels = 1;\n",
+    "  indentState = 0;\n",
+    "  lineCount = 0;\n",
+    "  for (int p = inpos; p < inend; ) {\n",
+    "    if (in[p++] != '\\n')\n",
+    "      continue;\n",
+    "    int width = 0;\n",
+    "    for (; p < inend; p++) {\n",
+    "      char c = in[p];\n",
+    "      if (c == ' ')\n",
+    "        width++;\n",
+    "      else if (c == '\\t')\n",
+    "        width += tabSpaces;\n",
+    "      else if (c != '\\r')\n",
+    "        break;\n",
+    "    }\n",
+    "    // blank lines have no indentation\n",
+    "    if (p < inend && in[p] == '\\n')\n",
+    "      continue;\n",
+    "    if (lineCount == lineStart.length) {\n",
+    "      int[] tmp = new int[lineCount * 2];\n",
+    "      System.arraycopy(lineStart, 0, tmp, 0, lineCount);\n",
+    "      lineStart = tmp;\n",
+    "      tmp = new int[lineCount * 2];\n",
+    "      System.arraycopy(lineIndent, 0, tmp, 0, lineCount);\n",
+    "      lineIndent = tmp;\n",
+    "    }\n",
+    "    lineStart[lineCount] = p;\n",
+    "    lineIndent[lineCount++] = width;\n",
     "  }\n",
-    "  return savePos != inpos;\n",
     "}\n",
     "\n",
     "protected boolean rule$Error(Node parent) {\n",
@@ -944,13 +5096,14 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		"  if (errors == null)\n",
 		"    errors = new LinkedList();\n",
     "  int pos = inpos;\n",
-    "  if (lastFail != null && lastFail.offset > pos)\n",
-    "    pos = lastFail.offset;\n",
+    "  if (lastFail > pos)\n",
+    "    pos = lastFail;\n",
     "  if (pos >= in.length)\n",
     "    pos = in.length - 1;\n",
     "  errors.add(\"Parse error at line \"+countLines(pos)+\":\");\n",
 		"  errors.add(collectErrorString(pos));\n",
     "  errors.add(indicateCharPos(pos));\n",
+    "  errorCount++;\n",
     "}\n",
     "\n",
     "private boolean eol(char c) {\n",
@@ -1008,30 +5161,50 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		"  rule.success = true;\n",
 		"  rule.length = inpos - rule.offset;\n",
 		"  rule.nextout = outpos;\n",
-    "  if (lastFail != null && rule.offset >= lastFail.offset)\n",
-    "    lastFail = null;\n",
+    "  if (rule.offset >= lastFail)\n",
+    "    lastFail = -1;\n",
 		"  return true;\n",
 		"}\n",
 		"\n",
 		"private boolean fail(Node rule, int outstart) {\n",
 		"  outpos = outstart;\n",
 		"  inpos = rule.offset;\n",
-    "  if (lastFail == null || lastFail.offset < rule.offset)\n",
-    "    lastFail = rule;\n",
+    "  if (lastFail < rule.offset)\n",
+    "    lastFail = rule.offset;\n",
 		"  return false;\n",
 		"}\n",
 		"\n",
-		"private boolean sameRule(String name) {\n",
+		"private boolean sameRule(String name, Node parent) {\n",
 		"  ensureOut();\n",
 		"  Node node = out[outpos];\n",
 		"  if (node != null && node.name == name && node.offset == inpos) {\n",
-		"    outpos = node.nextout;\n",
-		"    inpos = node.offset + node.length;\n",
+		"    // a failed rule leaves outpos and inpos where they were\n",
+		"    if (node.success) {\n",
+		"      // the node may be left from an attempt under another parent\n",
+		"      node.parent = parent;\n",
+		"      outpos = node.nextout;\n",
+		"      inpos = node.offset + node.length;\n",
+		"    }\n",
 		"    return true;\n",
 		"  }\n",
 		"  return false;\n",
 		"}\n",
 		"\n",
+		"private Node attempt(String name, Node parent) {\n",
+		"  // reuse the node of a failed attempt left in the slot, which\n",
+		"  // nothing refers to now that sameRule has passed it by\n",
+		"  Node node = out[outpos];\n",
+		"  if (node != null && !node.success) {\n",
+		"    node.name = name;\n",
+		"    node.parent = parent;\n",
+		"    node.offset = inpos;\n",
+		"  }\n",
+		"  else\n",
+		"    node = new Node(name, parent, inpos);\n",
+		"  out[outpos++] = node;\n",
+		"  return node;\n",
+		"}\n",
+		"\n",
 		"private void ensureOut() {\n",
 		"  if (outpos == out.length) {\n",
 		"    Node[] tmp = new Node[outpos<<1];\n",
@@ -1040,10 +5213,45 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 		"  }\n",
 		"}\n",
 		"\n",
-		"private Node[] pack() {\n",
-		"  out = Node.pack(out, outpos);\n",
-		"  outpos = out.length;\n",
-		"  return out;\n",
+		"private int compact() {\n",
+		"  // Compact out in place, in one pass: drop removed nodes, give\n",
+		"  // their children the nearest kept ancestor and link child and\n",
+		"  // next. Parents come before their children in out, and stack\n",
+		"  // holds the kept ancestors of the current node, so the node\n",
+		"  // popped last before reaching the parent is the previous child.\n",
+		"  Node[] stack = new Node[64];\n",
+		"  int top = 0;\n",
+		"  int n = 0;\n",
+		"  for (int i = 0; i < outpos; i++) {\n",
+		"    Node node = out[i];\n",
+		"    Node parent = node.parent;\n",
+		"    if (parent != null && parent.remove)\n",
+		"      parent = parent.parent;\n",
+		"    node.parent = parent;\n",
+		"    if (node.remove)\n",
+		"      continue;\n",
+		"    node.child = null;\n",
+		"    node.next = null;\n",
+		"    Node prev = null;\n",
+		"    while (top > 0 && stack[top-1] != parent)\n",
+		"      prev = stack[--top];\n",
+		"    if (parent != null) {\n",
+		"      if (prev == null)\n",
+		"        parent.child = node;\n",
+		"      else\n",
+		"        prev.next = node;\n",
+		"    }\n",
+		"    if (top == stack.length) {\n",
+		"      Node[] tmp = new Node[top<<1];\n",
+		"      System.arraycopy(stack,0,tmp,0,top);\n",
+		"      stack = tmp;\n",
+		"    }\n",
+		"    stack[top++] = node;\n",
+		"    // swap, so the removed nodes end up after the kept ones\n",
+		"    out[i] = out[n];\n",
+		"    out[n++] = node;\n",
+		"  }\n",
+		"  return n;\n",
 		"}\n",
 		"\n",
 		"private boolean matchAny() {\n",
@@ -1098,6 +5306,7 @@ public class SimplePegGenerator extends PegNodeVisitor implements Generator {
 	void visitChar(Node node) {
 		String rep = new String(in, node.offset, node.length);
 		cresult = PegUtil.decodeChar(rep);
+		cpresult = PegUtil.decodeCodePoint(rep);
 	}
 	
 	char testVisitChar(Node node, String input) {
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (C) 2003-2012 Bob Foster. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *    Bob Foster, initial API and implementation.
+ *******************************************************************************/
+
+package org.genantics.peggen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Set of code points made of ranges and Unicode properties, \p{Lu}
+ * or \p{IsGreek}, and compiled into two-level lookup tables, so a
+ * test costs the same whatever the size of the set.
+ *
+ * <p>The first level has an entry for each 256 code points, the
+ * number of a block of 256 bits in the second level. Identical
+ * blocks, like the many that are all clear, are stored once.</p>
+ *
+ * <p>Properties are those of the Character class of the JVM that
+ * runs the generator.</p>
+ *
+ * @author Bob Foster
+ */
+public final class UnicodeClass {
+
+	private static final HashMap<String,Integer> CATEGORIES = new HashMap<String,Integer>();
+	static {
+		String[] names = {
+			"Lu", "UPPERCASE_LETTER", "Ll", "LOWERCASE_LETTER", "Lt", "TITLECASE_LETTER",
+			"Lm", "MODIFIER_LETTER", "Lo", "OTHER_LETTER",
+			"Mn", "NON_SPACING_MARK", "Mc", "COMBINING_SPACING_MARK", "Me", "ENCLOSING_MARK",
+			"Nd", "DECIMAL_DIGIT_NUMBER", "Nl", "LETTER_NUMBER", "No", "OTHER_NUMBER",
+			"Pc", "CONNECTOR_PUNCTUATION", "Pd", "DASH_PUNCTUATION", "Ps", "START_PUNCTUATION",
+			"Pe", "END_PUNCTUATION", "Pi", "INITIAL_QUOTE_PUNCTUATION",
+			"Pf", "FINAL_QUOTE_PUNCTUATION", "Po", "OTHER_PUNCTUATION",
+			"Sm", "MATH_SYMBOL", "Sc", "CURRENCY_SYMBOL", "Sk", "MODIFIER_SYMBOL", "So", "OTHER_SYMBOL",
+			"Zs", "SPACE_SEPARATOR", "Zl", "LINE_SEPARATOR", "Zp", "PARAGRAPH_SEPARATOR",
+			"Cc", "CONTROL", "Cf", "FORMAT", "Co", "PRIVATE_USE", "Cs", "SURROGATE", "Cn", "UNASSIGNED",
+		};
+		for (int i = 0; i < names.length; i += 2) {
+			try {
+				int type = Character.class.getField(names[i+1]).getByte(null);
+				CATEGORIES.put(names[i], 1 << type);
+			}
+			catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		String[] groups = {"L", "M", "N", "P", "S", "Z", "C"};
+		for (String group : groups) {
+			int mask = 0;
+			for (String name : names) {
+				if (name.length() == 2 && name.charAt(0) == group.charAt(0))
+					mask |= CATEGORIES.get(name);
+			}
+			CATEGORIES.put(group, mask);
+		}
+	}
+
+	// lo0, hi0, lo1, hi1, ...
+	private final ArrayList<Integer> ranges = new ArrayList<Integer>();
+	// bit t set for the general categories t in or out of the set
+	private int categories;
+	private int notCategories;
+	private final ArrayList<Character.UnicodeScript> scripts = new ArrayList<Character.UnicodeScript>();
+	private final ArrayList<Character.UnicodeScript> notScripts = new ArrayList<Character.UnicodeScript>();
+	private boolean supplementary;
+	private CharSet first;
+	private char[] table;
+
+	/**
+	 * The chars in set, to be matched a char at a time.
+	 */
+	public static UnicodeClass of(CharSet set) {
+		UnicodeClass unicode = new UnicodeClass();
+		for (int i = 0; i < set.rangeCount(); i++)
+			unicode.add(set.rangeLo(i), set.rangeHi(i));
+		return unicode;
+	}
+
+	public void add(int lo, int hi) {
+		if (lo > hi)
+			return;
+		ranges.add(lo);
+		ranges.add(hi);
+		if (hi > Character.MAX_VALUE)
+			supplementary = true;
+	}
+
+	/**
+	 * Add the code points with a property, a general category like
+	 * L or Nd, or a script like IsGreek, or without it if negate.
+	 * Returns false if there is no such property.
+	 */
+	public boolean addProperty(String name, boolean negate) {
+		Integer mask = CATEGORIES.get(name);
+		if (mask != null) {
+			if (negate)
+				notCategories |= mask;
+			else
+				categories |= mask;
+			supplementary = true;
+			return true;
+		}
+		if (name.startsWith("Is")) {
+			try {
+				Character.UnicodeScript script = Character.UnicodeScript.forName(name.substring(2));
+				(negate ? notScripts : scripts).add(script);
+				supplementary = true;
+				return true;
+			}
+			catch (IllegalArgumentException e) {
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * True if the set must be matched a code point at a time,
+	 * rather than a char at a time.
+	 */
+	public boolean isSupplementary() {
+		return supplementary;
+	}
+
+	public boolean contains(int cp) {
+		for (int i = 0; i < ranges.size(); i += 2) {
+			if (cp >= ranges.get(i) && cp <= ranges.get(i+1))
+				return true;
+		}
+		if (categories != 0 || notCategories != 0) {
+			int bit = 1 << Character.getType(cp);
+			if ((categories & bit) != 0 || notCategories != 0 && (notCategories & bit) == 0)
+				return true;
+		}
+		if (!scripts.isEmpty() || !notScripts.isEmpty()) {
+			Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+			if (scripts.contains(script))
+				return true;
+			for (Character.UnicodeScript not : notScripts) {
+				if (not != script)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The highest code point the tables cover.
+	 */
+	public int limit() {
+		return supplementary ? Character.MAX_CODE_POINT : Character.MAX_VALUE;
+	}
+
+	/**
+	 * The chars that can start a match: the chars in the set and
+	 * the high surrogates of its supplementary code points.
+	 */
+	public CharSet firstChars() {
+		if (first != null)
+			return first;
+		CharSet set = CharSet.EMPTY;
+		int start = -1;
+		for (int c = 0; c <= Character.MAX_VALUE + 1; c++) {
+			boolean in = c <= Character.MAX_VALUE && (contains(c) || Character.isHighSurrogate((char) c) && highSurrogate((char) c));
+			if (in && start < 0)
+				start = c;
+			else if (!in && start >= 0) {
+				set = set.union(CharSet.range((char) start, (char) (c - 1)));
+				start = -1;
+			}
+		}
+		first = set;
+		return set;
+	}
+
+	private boolean highSurrogate(char high) {
+		if (!supplementary)
+			return false;
+		for (char low = Character.MIN_LOW_SURROGATE; low <= Character.MAX_LOW_SURROGATE; low++) {
+			if (contains(Character.toCodePoint(high, low)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The first level table, the block number of each 256 code points
+	 * up to the limit, followed by the blocks, 16 chars of bits each.
+	 */
+	public char[] table() {
+		if (table != null)
+			return table;
+		int entries = (limit() >> 8) + 1;
+		HashMap<String,Integer> numbers = new HashMap<String,Integer>();
+		StringBuilder index = new StringBuilder();
+		StringBuilder blocks = new StringBuilder();
+		char[] block = new char[16];
+		for (int b = 0; b < entries; b++) {
+			for (int i = 0; i < 16; i++) {
+				int bits = 0;
+				for (int j = 0; j < 16; j++) {
+					if (contains(b << 8 | i << 4 | j))
+						bits |= 1 << j;
+				}
+				block[i] = (char) bits;
+			}
+			String key = new String(block);
+			Integer n = numbers.get(key);
+			if (n == null) {
+				n = numbers.size();
+				numbers.put(key, n);
+				blocks.append(block);
+			}
+			// blocks are numbered by where they start in the table
+			index.append((char) n.intValue());
+		}
+		table = new char[entries + blocks.length()];
+		for (int b = 0; b < entries; b++)
+			table[b] = (char) (entries + 16 * index.charAt(b));
+		blocks.getChars(0, blocks.length(), table, entries);
+		return table;
+	}
+}
@@ -0,0 +1,90 @@
+package org.genantics.peggen;
+
+import java.io.*;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Bob Foster
+ */
+public class TestAnalyzer extends TestCase {
+
+  private GrammarAnalyzer analyzer;
+  private List errs;
+
+  private void analyze(String pegName) {
+    File inFile = new File("./src/test/resources/org/genantics/peggen/"+pegName+".peg");
+    assertTrue(inFile.exists());
+    try {
+      char[] buf = PegGen.readGrammar(new FileInputStream(inFile));
+      Parser parser = new Parser();
+      Node[] tree = parser.parseGrammar(buf, 0, buf.length);
+      assertTrue(tree != null);
+      analyzer = new GrammarAnalyzer(tree[0], buf);
+      errs = analyzer.getErrors();
+    } catch (IOException e) {
+      e.printStackTrace();
+      assertTrue(false);
+    }
+  }
+
+  private void printErrs() {
+    for (Object obj : errs)
+      System.err.println(obj.toString());
+  }
+
+  public void testBNF() {
+    analyze("expr-bnf");
+    assertTrue(errs == null);
+    assertFalse(analyzer.isNullable("Sum"));
+    assertFalse(analyzer.isNullable("Grammar"));
+    assertEquals("[\\t\\n\\r (\\-0-9]", analyzer.getFirst("Grammar").toString());
+    assertEquals("[0-9]", analyzer.getFirst("NUMBER").toString());
+    assertTrue(analyzer.getLeftRecursive().isEmpty());
+  }
+
+  public void testClassic() {
+    analyze("expr-classic");
+    assertTrue(errs == null);
+    assertTrue(analyzer.isNullable("S"));
+    assertEquals("[\\t\\n\\r ]", analyzer.getFirst("S").toString());
+    assertEquals("[(0-9]", analyzer.getFirst("Term").toString());
+  }
+
+  public void testLeftRecursion() {
+    analyze("expr-left-rec");
+    assertTrue(errs != null);
+    printErrs();
+    assertTrue(errs.size() == 9);
+    assertTrue(analyzer.getLeftRecursive().contains("Sum"));
+    assertTrue(analyzer.getLeftRecursive().contains("Prod"));
+    assertTrue(analyzer.getLeftRecursive().contains("Paren"));
+    assertFalse(analyzer.getLeftRecursive().contains("NUMBER"));
+  }
+
+  public void testLoop() {
+    analyze("expr-loop");
+    assertTrue(errs != null);
+    printErrs();
+    assertTrue(errs.size() == 6);
+  }
+
+  public void testUnicode() {
+    analyze("expr-unicode");
+    assertTrue(errs == null);
+    CharSet first = analyzer.getFirst("NUMBER");
+    assertTrue(first.contains('0'));
+    assertTrue(first.contains('\u0663'));
+    // high surrogate of the mathematical digits
+    assertTrue(first.contains('\ud835'));
+    assertFalse(first.contains('a'));
+  }
+
+  public void testBadClass() {
+    analyze("expr-bad-class");
+    assertTrue(errs != null);
+    printErrs();
+    assertTrue(errs.size() == 6);
+  }
+}
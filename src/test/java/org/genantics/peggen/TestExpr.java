@@ -11,10 +11,23 @@
  
 package org.genantics.peggen;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+import javax.tools.JavaCompiler;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import javax.tools.ToolProvider;
 import junit.framework.TestCase;
 
 /**
@@ -24,7 +37,10 @@ import junit.framework.TestCase;
 public class TestExpr extends TestCase {
   
   private void generate(String pegName, String className) {
-    PegGen gen = new PegGen();
+    generate(new PegGen(), pegName, className);
+  }
+  
+  private String generate(PegGen gen, String pegName, String className) {
     File file = new File("./target/test/java/org/genantics/generated/"+className+".java");
     File inFile = new File("./src/test/resources/org/genantics/peggen/"+pegName+".peg");
     assertTrue(inFile.exists());
@@ -43,9 +59,88 @@ public class TestExpr extends TestCase {
       }
       assertTrue(file.exists());
       assertTrue(file.length() > 0);
+      char[] buf = PegGen.readGrammar(new FileInputStream(file));
+      return new String(buf);
     } catch (IOException e) {
       e.printStackTrace();
       assertTrue(false);
+      return null;
+    }
+  }
+  
+  /**
+   * Compile a parser written by generate, and any other classes of
+   * the generated package it needs, and return an instance.
+   */
+  private Object compile(String className, String... others) {
+    File classes = new File("./target/test/generated-classes");
+    if (!classes.exists())
+      assertTrue(classes.mkdirs());
+    try {
+      String nodePath = new File(Node.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+      String[] args = new String[6 + others.length];
+      args[0] = "-nowarn";
+      args[1] = "-cp";
+      args[2] = nodePath;
+      args[3] = "-d";
+      args[4] = classes.getPath();
+      args[5] = "./target/test/java/org/genantics/generated/"+className+".java";
+      for (int i = 0; i < others.length; i++)
+        args[6 + i] = "./target/test/java/org/genantics/generated/"+others[i]+".java";
+      JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+      ByteArrayOutputStream messages = new ByteArrayOutputStream();
+      int status = javac.run(null, null, messages, args);
+      assertEquals(messages.toString(), 0, status);
+      URLClassLoader loader = new URLClassLoader(new URL[] {classes.toURI().toURL()},
+        TestExpr.class.getClassLoader());
+      return loader.loadClass("org.genantics.generated."+className).newInstance();
+    } catch (Exception e) {
+      e.printStackTrace();
+      assertTrue(false);
+      return null;
+    }
+  }
+  
+  /**
+   * Parse input with a compiled parser. Returns the nodes of the
+   * tree, name@offset+length, and their count, or null if the
+   * parse failed.
+   */
+  private String parse(Object parser, String input) {
+    try {
+      Method parseLanguage = parser.getClass().getMethod("parseLanguage", String.class);
+      Node[] tree = (Node[]) parseLanguage.invoke(parser, input);
+      if (tree == null)
+        return null;
+      int n = 0;
+      StringBuilder sb = new StringBuilder();
+      for (; n < tree.length && tree[n] != null; n++)
+        sb.append(tree[n].name).append('@').append(tree[n].offset).append('+').append(tree[n].length).append(' ');
+      assertEquals(n, ((Integer) invoke(parser, "getTreeSize")).intValue());
+      return sb.append("n=").append(n).toString();
+    } catch (Exception e) {
+      e.printStackTrace();
+      assertTrue(false);
+      return null;
+    }
+  }
+  
+  /**
+   * Call a public method of a compiled parser by name and return
+   * its result.
+   */
+  private Object invoke(Object parser, String name, Object... args) {
+    try {
+      for (Method method : parser.getClass().getMethods()) {
+        if (method.getName().equals(name) && method.getParameterTypes().length == args.length)
+          return method.invoke(parser, args);
+      }
+      fail("no method "+name);
+      return null;
+    } catch (Exception e) {
+      e.printStackTrace();
+      assertTrue(false);
+      return null;
     }
   }
   
@@ -73,5 +168,675 @@ public class TestExpr extends TestCase {
   public void testBNFExpr() {
     generate("expr-bnf", "ParseBNFExpr");
   }
+  
+  /**
+   * Test that rules take their node from attempt(), which reuses
+   * the node of a failed attempt, and failures record only offsets.
+   */
+  public void testAttemptExpr() {
+    String parse = generate(new PegGen(), "expr-bnf", "ParseBNFExpr");
+    assertTrue(parse.indexOf("Node rule = attempt(\"Sum\", parent);") >= 0);
+    assertTrue(parse.indexOf("new Node(\"Sum\"") < 0);
+    assertTrue(parse.indexOf("int lastFail = -1;") >= 0);
+  }
+
+  /**
+   * Test that the tree is compacted in place by the generated pack(),
+   * not copied with Node.pack, and that the nodes pruned by ~n leave
+   * the parent, child and next links of the rest right.
+   */
+  public void testPackExpr() {
+    String parse = generate(new PegGen(), "expr-bnf", "ParseBNFExpr");
+    assertTrue(parse.indexOf("private Node[] pack() {") >= 0);
+    assertTrue(parse.indexOf("Node.pack(") < 0);
+    Object parser = compile("ParseBNFExpr");
+    try {
+      Node[] tree = (Node[]) parser.getClass().getMethod("parseLanguage", String.class).invoke(parser, "1+2*3");
+      assertEquals(7, ((Integer) invoke(parser, "getTreeSize")).intValue());
+      assertNull(tree[0].parent);
+      assertNull(tree[0].next);
+      // Power and Unary have one child each, so only Sum and Prod remain
+      assertEquals("Sum(NUMBER ADD Prod(NUMBER MUL NUMBER))", links(tree[0]));
+      for (int i = 7; i < tree.length; i++)
+        assertNull(tree[i]);
+    } catch (Exception e) {
+      e.printStackTrace();
+      assertTrue(false);
+    }
+  }
+  
+  /**
+   * The names of a node and its descendants, reached by child and
+   * next, checking that each child's parent is the node.
+   */
+  private String links(Node node) {
+    if (node.child == null)
+      return node.name;
+    StringBuilder sb = new StringBuilder(node.name).append('(');
+    for (Node child = node.child; child != null; child = child.next) {
+      assertSame(node, child.parent);
+      sb.append(links(child)).append(child.next == null ? ")" : " ");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Test that an arena parser gets its nodes from newNode() and
+   * can take a tree back, without touching a tree it wasn't given.
+   */
+  public void testArenaExpr() {
+    String plain = generate(new PegGen(), "expr-bnf", "ParseBNFExpr");
+    assertTrue(plain.indexOf("release(") < 0);
+    PegGen gen = new PegGen();
+    gen.setArena(true);
+    String arena = generate(gen, "expr-bnf", "ParseArenaBNFExpr");
+    assertTrue(arena.indexOf("public void release(Node[] tree) {") >= 0);
+    assertTrue(arena.indexOf("node = newNode(name, parent, inpos);") >= 0);
+    assertTrue(arena.indexOf("out = arenaOut();") >= 0);
+    Object parser = compile("ParseArenaBNFExpr");
+    try {
+      Method parseLanguage = parser.getClass().getMethod("parseLanguage", String.class);
+      Node[] kept = (Node[]) parseLanguage.invoke(parser, "1+2*3");
+      String keptLinks = links(kept[0]);
+      Node[] released = (Node[]) parseLanguage.invoke(parser, "4-5");
+      Node[] reused = released.clone();
+      invoke(parser, "release", (Object) released);
+      // the released nodes and array are used again, the kept ones not
+      Node[] next = (Node[]) parseLanguage.invoke(parser, "(6*7)/8-9");
+      assertSame(released, next);
+      boolean found = false;
+      for (int i = 0; i < next.length && next[i] != null; i++) {
+        for (int j = 0; j < reused.length && reused[j] != null; j++)
+          found |= reused[j] == next[i];
+        for (int j = 0; j < kept.length && kept[j] != null; j++)
+          assertNotSame(kept[j], next[i]);
+      }
+      assertTrue(found);
+      assertEquals(keptLinks, links(kept[0]));
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < kept.length && kept[i] != null; i++)
+        sb.append(kept[i].name).append('@').append(kept[i].offset).append('+').append(kept[i].length).append(' ');
+      assertEquals("Sum@0+5 NUMBER@0+1 ADD@1+1 Prod@2+3 NUMBER@2+1 MUL@3+1 NUMBER@4+1 ", sb.toString());
+      assertEquals(parse(compile("ParseBNFExpr"), "(6*7)/8-9"), parse(parser, "(6*7)/8-9"));
+    } catch (Exception e) {
+      e.printStackTrace();
+      assertTrue(false);
+    }
+  }
+  
+  /**
+   * Test that profiling instruments rules only when asked, and
+   * counts calls, outcomes and chars of a parse.
+   */
+  public void testProfileExpr() {
+    String plain = generate(new PegGen(), "expr-bnf", "ParseBNFExpr");
+    assertTrue(plain.indexOf("getProfile") < 0);
+    PegGen gen = new PegGen();
+    gen.setProfile(true);
+    String profiled = generate(gen, "expr-bnf", "ParseProfiledBNFExpr");
+    assertTrue(profiled.indexOf("public String getProfile()") >= 0);
+    assertTrue(profiled.indexOf("private boolean ruleSum$(Node parent)") >= 0);
+    Object parser = compile("ParseProfiledBNFExpr");
+    assertEquals(parse(compile("ParseBNFExpr"), "1+2*3"), parse(parser, "1+2*3"));
+    String profile = (String) invoke(parser, "getProfile");
+    // calls, successes, failures, memo, retries, chars; not the times
+    assertEquals("3 3 0 0 0 3", profileCounts(profile, "NUMBER"));
+    assertEquals("6 3 3 0 0 3", profileCounts(profile, "DIGIT"));
+    assertEquals("3 1 2 0 0 1", profileCounts(profile, "MUL"));
+    assertEquals("1 1 0 0 0 5", profileCounts(profile, "Sum"));
+    invoke(parser, "resetProfile");
+    assertNull(profileCounts((String) invoke(parser, "getProfile"), "NUMBER"));
+  }
+  
+  /**
+   * The counts of a rule in a getProfile() report, or null if the
+   * rule is not listed.
+   */
+  private String profileCounts(String profile, String rule) {
+    for (String line : profile.split("\n")) {
+      String[] columns = line.trim().split(" +");
+      if (columns[0].equals(rule))
+        return columns[1]+" "+columns[2]+" "+columns[3]+" "+columns[4]+" "+columns[5]+" "+columns[6];
+    }
+    return null;
+  }
+  
+  /**
+   * Test that flight recorder events are generated only when asked,
+   * and report the same counts with and without an arena.
+   */
+  public void testJfrExpr() {
+    PegGen gen = new PegGen();
+    gen.setJfrEvents(true);
+    String parse = generate(gen, "expr-bnf", "ParseJfrBNFExpr");
+    assertTrue(parse.indexOf("class ParseEvent extends jdk.jfr.Event") >= 0);
+    assertTrue(parse.indexOf("RuleEvent") < 0);
+    gen = new PegGen();
+    gen.setJfrRuleEvents(true);
+    String rules = generate(gen, "expr-bnf", "ParseJfrRuleBNFExpr");
+    assertTrue(rules.indexOf("class RuleEvent extends jdk.jfr.Event") >= 0);
+    assertTrue(rules.indexOf("ParseEvent") < 0);
+    // the arena pack() empties out, so the mark is taken before it
+    gen = new PegGen();
+    gen.setJfrEvents(true);
+    gen.setArena(true);
+    String arena = generate(gen, "expr-bnf", "ParseJfrArenaBNFExpr");
+    int mark = arena.indexOf("int highWater = highWater();");
+    assertTrue(mark >= 0);
+    assertTrue(arena.indexOf("return endParse(event, length, errorMark, highWater, pack());") > mark);
+    String events = parseEvents(compile("ParseJfrBNFExpr"), "1+2*3", "1+", "4");
+    // the failed parse records one error of three lines
+    assertEquals("15/7/0 10/0/1 6/1/0 ", events);
+    assertEquals(events, parseEvents(compile("ParseJfrArenaBNFExpr"), "1+2*3", "1+", "4"));
+  }
+  
+  /**
+   * Parse inputs with a compiled parser while recording its parse
+   * events. Returns the out high-water mark, node count and error
+   * count of each event.
+   */
+  private String parseEvents(Object parser, String... inputs) {
+    try {
+      Recording recording = new Recording();
+      recording.enable("org.genantics.peggen.Parse");
+      recording.start();
+      for (String input : inputs)
+        parse(parser, input);
+      recording.stop();
+      File file = File.createTempFile("parse", ".jfr");
+      recording.dump(file.toPath());
+      recording.close();
+      StringBuilder sb = new StringBuilder();
+      for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath()))
+        sb.append(event.getInt("outHighWater")).append('/').append(event.getInt("nodeCount"))
+          .append('/').append(event.getInt("errorCount")).append(' ');
+      file.delete();
+      return sb.toString();
+    } catch (IOException e) {
+      e.printStackTrace();
+      assertTrue(false);
+      return null;
+    }
+  }
+  
+  /**
+   * Test that small suppressed rules are inlined and unused rules pruned.
+   */
+  public void testInlineExpr() {
+    PegGen gen = new PegGen();
+    gen.setInline(PegGen.DEFAULT_INLINE);
+    String inlined = generate(gen, "expr-bnf", "ParseInlinedBNFExpr");
+    assertTrue(inlined.indexOf("ruleDIGIT(rule)") < 0);
+    assertTrue(inlined.indexOf("protected boolean ruleDIGIT(Node parent)") >= 0);
+    gen = new PegGen();
+    gen.setInline(PegGen.DEFAULT_INLINE);
+    gen.setPrune(true);
+    String pruned = generate(gen, "expr-bnf", "ParsePrunedBNFExpr");
+    assertTrue(pruned.indexOf("ruleDIGIT") < 0);
+    assertTrue(pruned.indexOf("protected boolean ruleNUMBER(Node parent)") >= 0);
+  }
+  
+  /**
+   * Test that a failed ( )* or ( )? gives back what it matched,
+   * so a trailing operator is left for !. to reject.
+   */
+  public void testPartialRepetitionExpr() {
+    generate(new PegGen(), "expr-bnf", "ParseBNFExpr");
+    Object parser = compile("ParseBNFExpr");
+    assertEquals("Sum@0+3 NUMBER@0+1 ADD@1+1 NUMBER@2+1 n=4", parse(parser, "1+2"));
+    assertNull(parse(parser, "1+2+"));
+    assertNull(parse(parser, "-1+"));
+  }
+  
+  /**
+   * Test that optimized code combines simple matches and drops
+   * the restores fail() does anyway.
+   */
+  public void testOptimizeExpr() {
+    String plain = generate(new PegGen(), "expr-classic", "ParseClassicExpr");
+    PegGen gen = new PegGen();
+    gen.setOptimize(true);
+    String optimized = generate(gen, "expr-classic", "ParseOptimizedClassicExpr");
+    assertTrue(optimized.length() < plain.length());
+    assertTrue(optimized.indexOf("match = ruleNUMBER(rule) || matchChar('(') && ruleProd(rule) && matchChar(')');") >= 0);
+    assertTrue(optimized.indexOf("int outmark = outpos;") < 0);
+    assertTrue(plain.indexOf("match = matchSet(\" \\t\\r\\n\");") >= 0);
+    assertTrue(optimized.indexOf("match = matchSet(\" \\t\\r\\n\");") < 0);
+    assertTrue(optimized.indexOf("if (!(c1 >= '\\t' && c1 <= '\\n' || c1 == '\\r' || c1 == ' '))") >= 0);
+  }
+
+  /**
+   * Test that oversized rules and grammars are split.
+   */
+  public void testSplitExpr() {
+    PegGen gen = new PegGen();
+    gen.setMethodLimit(100);
+    gen.setClassLimit(60);
+    String split = generate(gen, "expr-bnf", "ParseSplitBNFExpr");
+    assertTrue(split.indexOf("private int ruleSum$1(Node rule) {") >= 0);
+    assertTrue(split.indexOf("abstract class ParseSplitBNFExprBase {") >= 0);
+    assertTrue(split.indexOf("abstract class ParseSplitBNFExprRules1 extends ParseSplitBNFExprBase {") >= 0);
+    assertTrue(split.indexOf("public class ParseSplitBNFExpr extends ParseSplitBNFExprRules") >= 0);
+  }
+
+  /**
+   * Test that optimized code searches for the end of a comment
+   * instead of matching one char at a time.
+   */
+  public void testScanUntilExpr() {
+    PegGen gen = new PegGen();
+    gen.setOptimize(true);
+    String optimized = generate(gen, "expr-comments", "ParseOptimizedCommentsExpr");
+    assertTrue(optimized.indexOf("inpos = scanUntil(\"*/\");") >= 0);
+    assertTrue(optimized.indexOf("inpos = scanUntil(\"*end*)\", SKIP0);") >= 0);
+    assertTrue(optimized.indexOf("private static final int[] SKIP0 = skipTable(\"*end*)\");") >= 0);
+    assertTrue(optimized.indexOf("if (c2 == '\\n' || c2 == '\\r')") >= 0);
+  }
+
+  /**
+   * Test that predicates call node-free recognizers when asked.
+   */
+  public void testRecognizerExpr() {
+    String plain = generate(new PegGen(), "expr-assign", "ParseAssignExpr");
+    assertTrue(plain.indexOf("match = ruleKeyword(rule);") >= 0);
+    assertTrue(plain.indexOf("recKeyword") < 0);
+    PegGen gen = new PegGen();
+    gen.setRecognizers(true);
+    String recognized = generate(gen, "expr-assign", "ParseRecognizedAssignExpr");
+    assertTrue(recognized.indexOf("match = ruleKeyword(rule);") < 0);
+    assertTrue(recognized.indexOf("match = recKeyword();") >= 0);
+    assertTrue(recognized.indexOf("protected boolean recKeyword() {") >= 0);
+    assertTrue(recognized.indexOf("protected boolean recIdChar() {") >= 0);
+    assertTrue(recognized.indexOf("recIdent") < 0);
+  }
+
+  /**
+   * Test that optimized code parses a chain of precedence levels
+   * with one climbing method.
+   */
+  public void testPrecedenceExpr() {
+    String plain = generate(new PegGen(), "expr-bnf", "ParseBNFExpr");
+    assertTrue(plain.indexOf("climbSum") < 0);
+    PegGen gen = new PegGen();
+    gen.setOptimize(true);
+    String optimized = generate(gen, "expr-bnf", "ParseOptimizedBNFExpr");
+    assertTrue(optimized.indexOf("protected boolean climbSum(Node parent, int level) {") >= 0);
+    assertTrue(optimized.indexOf("node = wrap(\"Prod\", parent, start, outstart);") >= 0);
+    assertTrue(optimized.indexOf("match = climbSum(rule, 1);") >= 0);
+    assertTrue(optimized.indexOf("match = ruleProd(rule);") < 0);
+  }
+
+  /**
+   * Test that a depth limit counts calls of recursive rules only
+   * and turns overflow into a parse error that leaves the parser
+   * usable.
+   */
+  public void testMaxDepthExpr() {
+    String plain = generate(new PegGen(), "expr-bnf", "ParseBNFExpr");
+    assertTrue(plain.indexOf("depth") < 0);
+    PegGen gen = new PegGen();
+    gen.setMaxDepth(500);
+    String limited = generate(gen, "expr-bnf", "ParseLimitedBNFExpr");
+    assertTrue(limited.indexOf("static final int MAX_DEPTH = 500;") >= 0);
+    assertTrue(limited.indexOf("private boolean ruleSum$(Node parent) {") >= 0);
+    assertTrue(limited.indexOf("ruleNUMBER$") < 0);
+    assertTrue(limited.indexOf("catch (StackOverflowError e) {") >= 0);
+    Object parser = compile("ParseLimitedBNFExpr");
+    StringBuilder deep = new StringBuilder();
+    for (int i = 0; i < 1000; i++)
+      deep.append('(');
+    deep.append('1');
+    for (int i = 0; i < 1000; i++)
+      deep.append(')');
+    assertNull(parse(parser, deep.toString()));
+    List errors = (List) invoke(parser, "getErrors");
+    assertTrue(((String) errors.get(0)).startsWith("Input nested too deeply at line 1"));
+    assertEquals(parse(compile("ParseBNFExpr"), "((1))+2"), parse(parser, "((1))+2"));
+  }
+
+  /**
+   * Test that suppressed rules of chars only get a position method
+   * and node rules do not.
+   */
+  public void testPositionsExpr() {
+    String plain = generate(new PegGen(), "expr-assign", "ParseAssignExpr");
+    assertTrue(plain.indexOf("posIdChar") < 0);
+    PegGen gen = new PegGen();
+    gen.setPositions(true);
+    String positions = generate(gen, "expr-assign", "ParsePositionsAssignExpr");
+    assertTrue(positions.indexOf("protected int posIdChar(int p) {") >= 0);
+    assertTrue(positions.indexOf("int end = posIdChar(inpos);") >= 0);
+    assertTrue(positions.indexOf("posIdent") < 0);
+  }
+
+  /**
+   * Test that rules reaching $Indent or $Outdent restore the
+   * indentation when they backtrack and memoize it, and others
+   * don't.
+   */
+  public void testIndentExpr() {
+    String plain = generate(new PegGen(), "expr-assign", "ParseAssignExpr");
+    assertTrue(plain.indexOf("resetIndent();") < 0);
+    assertTrue(plain.indexOf("sameIndent") < 0);
+    String indented = generate(new PegGen(), "expr-indent", "ParseIndentExpr");
+    assertTrue(indented.indexOf("resetIndent();") >= 0);
+    assertTrue(indented.indexOf("if (sameIndent(\"While\", parent))") >= 0);
+    assertTrue(indented.indexOf("indentState = indentmark") >= 0);
+    assertTrue(indented.indexOf("if (sameRule(\"Sum\", parent))") >= 0);
+  }
+
+  /**
+   * Test that optimized ::= rules test for whitespace in place
+   * before skipping it.
+   */
+  public void testSkipWSExpr() {
+    String plain = generate(new PegGen(), "expr-bnf", "ParseBNFExpr");
+    assertTrue(plain.indexOf("ruleWS(rule);") >= 0);
+    assertTrue(plain.indexOf("private void skipWS() {") >= 0);
+    PegGen gen = new PegGen();
+    gen.setOptimize(true);
+    String optimized = generate(gen, "expr-bnf", "ParseOptimizedBNFExpr");
+    assertTrue(optimized.indexOf("if (match && inpos < inend && in[inpos] <= ' ')") >= 0);
+    assertTrue(optimized.indexOf("ruleWS(rule);") < 0);
+    assertTrue(optimized.indexOf("resetWS();") >= 0);
+  }
+
+  /**
+   * Test that uppercase rules made only of chars keep a table of
+   * their ends, and suppressed ones don't.
+   */
+  public void testTokensExpr() {
+    PegGen gen = new PegGen();
+    gen.setTokens("");
+    String tokens = generate(gen, "expr-bnf", "ParseTokensBNFExpr");
+    assertTrue(tokens.indexOf("private static final int TOKEN_RULES = 5;") >= 0);
+    assertTrue(tokens.indexOf("end = setTokenEnd(4, posNUMBER(inpos));") >= 0);
+    assertTrue(tokens.indexOf("resetTokens();") >= 0);
+    assertTrue(tokens.indexOf("int end = posDIGIT(inpos);") >= 0);
+  }
+
+  /**
+   * Test that a predicate on a token rule with a node of its own
+   * leaves no node in the tree when it is recognized.
+   */
+  public void testTokenLookaheadExpr() {
+    generate(new PegGen(), "expr-lookahead", "ParseLookaheadExpr");
+    assertEquals("Grammar@0+3 n=1", parse(compile("ParseLookaheadExpr"), "12x"));
+    PegGen gen = new PegGen();
+    gen.setOptimize(true);
+    gen.setRecognizers(true);
+    gen.setTokens("");
+    String tokens = generate(gen, "expr-lookahead", "ParseTokensLookaheadExpr");
+    assertTrue(tokens.indexOf("match = recNUM();") >= 0);
+    assertEquals("Grammar@0+3 n=1", parse(compile("ParseTokensLookaheadExpr"), "12x"));
+    gen.setTokens(null);
+    gen.setDfa(true);
+    generate(gen, "expr-lookahead", "ParseDfaLookaheadExpr");
+    assertEquals("Grammar@0+3 n=1", parse(compile("ParseDfaLookaheadExpr"), "12x"));
+  }
+
+  /**
+   * Test that rule ids don't take the names of the parser's own
+   * constants.
+   */
+  public void testReservedIdsExpr() {
+    String parser = generate(new PegGen(), "expr-reserved", "ParseReservedExpr");
+    assertTrue(parser.indexOf("public static final int INITIAL_OUT_SIZE_ = 1;") >= 0);
+    assertTrue(parser.indexOf("public static final int CLASS0_ = 2;") >= 0);
+    assertEquals("Grammar@0+5 Initial_out_size@0+2 Class0@3+2 n=3", parse(compile("ParseReservedExpr"), "12,ab"));
+  }
+
+  /**
+   * Test that a compiled Visitor reaches the method of each node
+   * in a parsed tree, and nothing for pruned rules.
+   */
+  public void testVisitorExpr() {
+    generate(new PegGen(), "expr-bnf", "ParseBNFExpr");
+    File file = new File("./target/test/java/org/genantics/generated/VisitBNFExpr.java");
+    try {
+      PrintWriter writer = new PrintWriter(new FileWriter(file));
+      writer.println("package org.genantics.generated;");
+      writer.println("import org.genantics.peggen.Node;");
+      writer.println("public class VisitBNFExpr extends ParseBNFExpr.Visitor {");
+      writer.println("  private StringBuilder sb = new StringBuilder();");
+      writer.println("  public String toString() { return sb.toString(); }");
+      writer.println("  private void record(String name, Node node) {");
+      writer.println("    sb.append(name);");
+      writer.println("    if (node.child != null) { sb.append('('); visitChildren(node); sb.append(')'); }");
+      writer.println("    sb.append(' ');");
+      writer.println("  }");
+      String[] rules = {"Sum", "Prod", "Power", "Unary", "MUL", "DIV", "ADD", "SUB", "NUMBER"};
+      for (String rule : rules)
+        writer.println("  protected void visit"+rule+"(Node node) { record(\""+rule+"\", node); }");
+      writer.println("}");
+      writer.close();
+      Object parser = compile("ParseBNFExpr", "VisitBNFExpr");
+      Node[] tree = (Node[]) parser.getClass().getMethod("parseLanguage", String.class).invoke(parser, "1+2*3^4");
+      Object visitor = parser.getClass().getClassLoader().loadClass("org.genantics.generated.VisitBNFExpr").newInstance();
+      visitor.getClass().getMethod("visit", Node.class).invoke(visitor, tree[0]);
+      assertEquals("Sum(NUMBER ADD Prod(NUMBER MUL Power(NUMBER NUMBER ) ) ) ", visitor.toString());
+    } catch (Exception e) {
+      e.printStackTrace();
+      assertTrue(false);
+    }
+  }
+
+  /**
+   * Test that a regular rule with a repetition is matched by an
+   * automaton, and a single char rule isn't, and that the parser
+   * builds the same trees.
+   */
+  public void testDfaExpr() {
+    PegGen gen = new PegGen();
+    gen.setDfa(true);
+    String dfa = generate(gen, "expr-bnf", "ParseDfaBNFExpr");
+    assertTrue(dfa.indexOf("int end = posNUMBER(inpos);") >= 0);
+    assertTrue(dfa.indexOf("private static final char[] dfaNUMBER = (") >= 0);
+    assertTrue(dfa.indexOf("s = dfa[s + (c < 128 ? dfa[c] : 0)];") >= 0);
+    assertTrue(dfa.indexOf("dfaMUL") < 0);
+    generate(new PegGen(), "expr-bnf", "ParseBNFExpr");
+    assertSameParses(compile("ParseBNFExpr"), compile("ParseDfaBNFExpr"),
+      "1+2.5e-3*(4-6)^2", "12.", "1e", "3.25E+10", "7 / 0.5 - 1e9", "1+x");
+  }
+  
+  /**
+   * Assert that two compiled parsers give the same trees, or both
+   * fail, on each input.
+   */
+  private void assertSameParses(Object expected, Object actual, String... inputs) {
+    for (String input : inputs)
+      assertEquals(input, parse(expected, input), parse(actual, input));
+  }
+
+  /**
+   * Test that Unicode categories and supplementary ranges are matched
+   * by lookup tables, and parse as a build without tokens does.
+   */
+  public void testUnicodeExpr() {
+    generate(new PegGen(), "expr-unicode", "ParsePlainUnicodeExpr");
+    PegGen gen = new PegGen();
+    gen.setTokens("NUMBER,Unit");
+    String unicode = generate(gen, "expr-unicode", "ParseUnicodeExpr");
+    assertTrue(unicode.indexOf("match = matchClass(CLASS0);") >= 0);
+    assertTrue(unicode.indexOf("p = classEnd(CLASS2, in, p, inend);") >= 0);
+    assertTrue(unicode.indexOf("private static final char[] CLASS0 = (") >= 0);
+    assertTrue(unicode.indexOf("private static int classEnd(") >= 0);
+    // many ranges of one plane test a table too
+    assertTrue(unicode.indexOf("(CLASS4[CLASS4[in[p] >> 8]") >= 0);
+    assertTrue(unicode.indexOf("'\\u00d7'") >= 0);
+    Object parser = compile("ParseUnicodeExpr");
+    // Greek name, Arabic-Indic digits, math bold digits, a Roman numeral,
+    // a combining mark, a no-break space and units; a superscript two
+    // is not a digit
+    String[] inputs = {"\u03b1\u03b2 \u00d7 3 \u2212 \u0663\u0664", "\uD835\uDFCF\uD835\uDFD0 + x",
+      "\u216b+1", "e\u0301 \u00f7 2", "x\u00a0+ y", "100% + 5\u20ac", "x + \u00b2", "1 2"};
+    assertSameParses(compile("ParsePlainUnicodeExpr"), parser, inputs);
+    for (int i = 0; i < inputs.length - 2; i++)
+      assertNotNull(inputs[i], parse(parser, inputs[i]));
+    assertNull(parse(parser, inputs[inputs.length - 2]));
+    assertNull(parse(parser, inputs[inputs.length - 1]));
+  }
+
+  /**
+   * Test that 'literal'i matches any case, with or without -optimize
+   * and -positions.
+   */
+  public void testNoCaseExpr() {
+    generate(new PegGen(), "expr-nocase", "ParsePlainNoCaseExpr");
+    PegGen gen = new PegGen();
+    gen.setOptimize(true);
+    gen.setPositions(true);
+    String nocase = generate(gen, "expr-nocase", "ParseNoCaseExpr");
+    assertTrue(nocase.indexOf("match = matchNoCase(\"and\") || matchNoCase(\"or\");") >= 0);
+    assertTrue(nocase.indexOf("p = noCaseAt(p, \"select\");") >= 0);
+    assertTrue(nocase.indexOf("private boolean matchNoCase(String literal) {") >= 0);
+    Object parser = compile("ParseNoCaseExpr");
+    String[] inputs = {"SELECT a FROM t WHERE x = 1 AND y LIKE 'q'", "select * from t;",
+      "Select a, b From t where a<>2 oR b>=3", "sElEcT Selection FROM Fromage",
+      "select from from t", "selecta from t", "select a frm t"};
+    assertSameParses(compile("ParsePlainNoCaseExpr"), parser, inputs);
+    for (int i = 0; i < 4; i++)
+      assertNotNull(inputs[i], parse(parser, inputs[i]));
+    for (int i = 4; i < inputs.length; i++)
+      assertNull(inputs[i], parse(parser, inputs[i]));
+  }
+
+  /**
+   * Test that limits count a step on entry to every rule and are
+   * checked together when the steps run out, that each one stops a
+   * parse with its own error, and that the parser is usable after.
+   */
+  public void testLimitsExpr() {
+    String plain = generate(new PegGen(), "expr-bnf", "ParseBNFExpr");
+    assertTrue(plain.indexOf("checkLimits") < 0);
+    PegGen gen = new PegGen();
+    gen.setLimits(true);
+    gen.setMaxDepth(500);
+    String limited = generate(gen, "expr-bnf", "ParseLimitsBNFExpr");
+    int sum = limited.indexOf("private boolean ruleSum$(Node parent) {");
+    assertTrue(sum >= 0);
+    assertTrue(limited.indexOf("if (--steps < 0)", sum) < limited.indexOf("int outstart", sum));
+    // the depth wrapper counts no step of its own
+    assertTrue(limited.indexOf("if (--steps < 0)", limited.indexOf("protected boolean ruleSum(")) > sum);
+    assertTrue(limited.indexOf("resetLimits();") >= 0);
+    assertTrue(limited.indexOf("catch (StackOverflowError e) {") >= 0);
+    assertTrue(limited.indexOf("catch (OverLimit e) {") >= 0);
+    assertTrue(limited.indexOf("public void setTimeout(long millis) {") >= 0);
+    Object parser = compile("ParseLimitsBNFExpr");
+    String expected = parse(compile("ParseBNFExpr"), "1+2*3");
+    StringBuilder sb = new StringBuilder("1");
+    for (int i = 0; i < 100000; i++)
+      sb.append("+2*3");
+    String big = sb.toString();
+    invoke(parser, "setMaxSteps", 10L);
+    assertLimit(parser, "1+2*3", "Parse step limit exceeded");
+    invoke(parser, "setMaxSteps", 0L);
+    assertEquals(expected, parse(parser, "1+2*3"));
+    // the most nodes out holds at once, with the MUL tried after the last NUMBER
+    invoke(parser, "setMaxNodes", 14);
+    assertLimit(parser, "1+2*3", "Parse node limit exceeded");
+    invoke(parser, "setMaxNodes", 15);
+    assertEquals(expected, parse(parser, "1+2*3"));
+    invoke(parser, "setMaxNodes", 0);
+    invoke(parser, "setTimeout", 1L);
+    assertLimit(parser, big, "Parse deadline passed");
+    invoke(parser, "setTimeout", 0L);
+    assertEquals(expected, parse(parser, "1+2*3"));
+    Thread.currentThread().interrupt();
+    assertLimit(parser, big, "Parse interrupted");
+    // the interrupt is left for the caller
+    assertTrue(Thread.interrupted());
+    assertEquals(expected, parse(parser, "1+2*3"));
+    assertNotNull(parse(parser, big));
+  }
+  
+  /**
+   * Assert that a parse fails with the error of a limit.
+   */
+  private void assertLimit(Object parser, String input, String message) {
+    assertNull(parse(parser, input));
+    List errors = (List) invoke(parser, "getErrors");
+    String error = (String) errors.get(errors.size() - 3);
+    assertTrue(error, error.startsWith(message+" at line 1"));
+  }
+
+  /**
+   * Test that node rules count tries at a position and keep their
+   * results once memoized, and other rules are left alone, and that
+   * memoizing doesn't change the tree.
+   */
+  public void testMemoExpr() {
+    String plain = generate(new PegGen(), "expr-bnf", "ParseBNFExpr");
+    assertTrue(plain.indexOf("sameMemo") < 0);
+    PegGen gen = new PegGen();
+    gen.setMemo(8);
+    String memo = generate(gen, "expr-bnf", "ParseMemoBNFExpr");
+    assertTrue(memo.indexOf("static final int MEMO_THRESHOLD = 8;") >= 0);
+    assertTrue(memo.indexOf("if (sameMemo(0, \"Sum\", parent)) return out[outstart].success;") >= 0);
+    assertTrue(memo.indexOf("return succeedMemo(0, rule, outstart);") >= 0);
+    assertTrue(memo.indexOf("return failMemo(0, rule, outstart);") >= 0);
+    assertTrue(memo.indexOf("resetMemo();") >= 0);
+    assertTrue(memo.indexOf("public String[] getMemoized() {") >= 0);
+    generate(new PegGen(), "expr-retry", "ParseRetryExpr");
+    generate(gen, "expr-retry", "ParseMemoRetryExpr");
+    Object parser = compile("ParseMemoRetryExpr");
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 8; i++)
+      sb.append('(');
+    sb.append("1*2");
+    for (int i = 0; i < 8; i++)
+      sb.append(")-3");
+    assertSameParses(compile("ParseRetryExpr"), parser, "1+2", "(1)*2", sb.toString(), "(1+)");
+    parse(parser, "1+2");
+    assertEquals(0, ((String[]) invoke(parser, "getMemoized")).length);
+    // each alternative of Sum tries Atom again at the same position
+    parse(parser, sb.toString());
+    assertTrue(Arrays.asList((String[]) invoke(parser, "getMemoized")).contains("Atom"));
+    System.out.println(java.util.Arrays.toString((String[]) invoke(parser, "getMemoized")));
+  }
+
+  /**
+   * Test that a profiling parser counts the alternatives of choices
+   * that can be reordered, and that a profile reorders them and
+   * memoizes rules it shows are parsed again.
+   */
+  public void testUseProfileExpr() {
+    PegGen gen = new PegGen();
+    gen.setProfile(true);
+    String profiled = generate(gen, "expr-bnf", "ParseProfiledBNFExpr");
+    assertTrue(profiled.indexOf("\"Term.0\",") >= 0);
+    assertTrue(profiled.indexOf("static final int[] PROFILE_ALTS = {0, 2, 4, 6, 8};") >= 0);
+    assertTrue(profiled.indexOf("if (match) profAlts[") >= 0);
+    assertTrue(profiled.indexOf("resetRetries();") >= 0);
+    String text = "rule      calls  memo  retries\n"
+      + "Sum         100     0       90\n"
+      + "Prod        100    60       80\n"
+      + "\n"
+      + "choice\n"
+      + "Term.0       10    30\n";
+    try {
+      ParseProfile profile = ParseProfile.read(new StringReader(text));
+      assertEquals(200, profile.getTotalCalls());
+      assertEquals(90, profile.getRetries("Sum"));
+      assertEquals(30, profile.getAlternatives("Term", 0)[1]);
+      File file = new File("./target/test/expr-bnf.profile");
+      file.getParentFile().mkdirs();
+      FileWriter writer = new FileWriter(file);
+      writer.write(text);
+      writer.close();
+      gen = new PegGen();
+      gen.setUseProfile(file);
+      String guided = generate(gen, "expr-bnf", "ParseGuidedBNFExpr");
+      int term = guided.indexOf("boolean ruleTerm(");
+      assertTrue(term >= 0);
+      assertTrue(guided.indexOf("matchChar('(')", term) < guided.indexOf("ruleNUMBER(", term));
+      assertTrue(guided.indexOf("static final int MEMO_EAGER = 1;") >= 0);
+      assertTrue(guided.indexOf("if (sameMemo(0, \"Sum\", parent)) return out[outstart].success;") >= 0);
+      assertTrue(guided.indexOf("sameMemo(1, ") < 0);
+    } catch (IOException e) {
+      e.printStackTrace();
+      assertTrue(false);
+    }
+  }
 
 }